@@ -3,6 +3,7 @@ import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.Tag;
 import software.amazon.awssdk.services.ec2.model.*;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.services.s3.model.*;
@@ -10,11 +11,16 @@ import software.amazon.awssdk.services.sqs.SqsClient;
 import software.amazon.awssdk.services.sqs.model.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.Base64;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 
 public class AWS {
@@ -26,9 +32,15 @@ public class AWS {
     private static final String MANAGER_TO_APP_TAG = "ManagerToAppQueue";
     private static final String APP_TO_MANAGER_TAG = "AppToManagerQueue";
     private static final String S3_BUCKET_TAG = "s3bucket";
+    private static final String SHARD_TAG = "shard";
+    private static final String SHARDS_TAG = "shards";
+    // Lookups of a new reply queue before giving up on it
+    private static final int REPLY_QUEUE_LOOKUPS = 5;
 
     private String MANAGER_TO_APP_QUEUE_URL;
-    private String APP_TO_MANAGER_QUEUE_URL;
+    // Intake queue of every Manager shard, by shard index
+    private final List<String> appToManagerQueueUrls = new ArrayList<>();
+    private ShardRing shardRing;
     private String S3_BUCKET_NAME;
 
     public static Region region = Region.US_EAST_1;
@@ -93,6 +105,37 @@ public class AWS {
         System.out.println("Downloaded " + key + " from " + S3_BUCKET_NAME + " to " + filePath);
     }
 
+    public byte[] downloadBytesFromS3(String key) {
+        return s3.getObjectAsBytes(GetObjectRequest.builder().bucket(S3_BUCKET_NAME).key(key).build()).asByteArray();
+    }
+
+    // Reads length bytes starting at offset
+    public byte[] downloadRangeFromS3(String key, long offset, long length) {
+        return s3.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(S3_BUCKET_NAME)
+                .key(key)
+                .range("bytes=" + offset + "-" + (offset + length - 1))
+                .build()).asByteArray();
+    }
+
+    // Processed results may be stored gzip encoded (compress option) - returns the plain text form either way
+    public String downloadResultFromS3(String key) throws IOException {
+        ResponseBytes<GetObjectResponse> object = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(S3_BUCKET_NAME).key(key).build());
+        if ("gzip".equalsIgnoreCase(object.response().contentEncoding())) {
+            return ResultArchive.gunzip(object.asByteArray());
+        }
+        return object.asUtf8String();
+    }
+
+    // Workers report results as public object URLs: https://<bucket>.s3.amazonaws.com/<url-encoded key>
+    public String keyFromPublicUrl(String publicUrl) throws UnsupportedEncodingException {
+        String prefix = "https://" + S3_BUCKET_NAME + ".s3.amazonaws.com/";
+        if (!publicUrl.startsWith(prefix)) {
+            throw new IllegalArgumentException("Not an object URL of bucket " + S3_BUCKET_NAME + ": " + publicUrl);
+        }
+        return URLDecoder.decode(publicUrl.substring(prefix.length()), StandardCharsets.UTF_8.name());
+    }
+
     public String createSqsQueue(String queueName) {
         CreateQueueRequest createQueueRequest = CreateQueueRequest.builder()
                 .queueName(queueName)
@@ -101,15 +144,29 @@ public class AWS {
         return queueRes.queueUrl();
     }
 
-    // only works with from App to Manager
-    public void sendMessage(String messageBody) {
+    // Sends a message about one job to the Manager shard that owns its appId
+    public void sendMessage(String appId, String messageBody) {
+        if (shardRing == null) {
+            throw new IllegalStateException("Manager unavailable");
+        }
         sqs.sendMessage(SendMessageRequest.builder()
-                .queueUrl(APP_TO_MANAGER_QUEUE_URL)
+                .queueUrl(appToManagerQueueUrls.get(shardRing.shardOf(appId)))
                 .messageBody(messageBody)
                 .build());
     }
 
-    public void findOrCreateManager(int n) {
+    // Sends a message to every Manager shard, e.g. "terminate"
+    public void sendMessageToAllManagers(String messageBody) {
+        for (String queueUrl : appToManagerQueueUrls) {
+            sqs.sendMessage(SendMessageRequest.builder()
+                    .queueUrl(queueUrl)
+                    .messageBody(messageBody)
+                    .build());
+        }
+    }
+
+    // Connects to the running Manager shards; returns how many there are, 0 if none is running
+    public int findManager() {
         DescribeInstancesRequest request = DescribeInstancesRequest.builder()
                 .filters(Filter.builder().name("instance-state-name").values("running", "pending").build(),
                         Filter.builder().name("tag:Name").values(MANAGER_TAG).build())
@@ -125,31 +182,49 @@ public class AWS {
             }
         }
 
-        if (managerFound) {
-            // Get existing queue URLs from tags
-            System.out.println("Manager is already running.");
-            for (Reservation reservation : describeInstancesResponse.reservations()) {
-                for (Instance remoteInstance : reservation.instances()) {
-                    for (Tag tag : remoteInstance.tags()) {
-                        if (tag.key().equals(APP_TO_MANAGER_TAG)) {
-                            APP_TO_MANAGER_QUEUE_URL = tag.value();
-                        } 
-                        else if (tag.key().equals(MANAGER_TO_APP_TAG)) {
-                            MANAGER_TO_APP_QUEUE_URL = tag.value();
-                        }
-                        else if (tag.key().equals(S3_BUCKET_TAG)) {
-                            S3_BUCKET_NAME = tag.value();
-                        }
+        if (!managerFound) {
+            return 0;
+        }
+        // Get the shared queue, the bucket and the shard count from the tags
+        int runningShards = 1;
+        for (Reservation reservation : describeInstancesResponse.reservations()) {
+            for (Instance remoteInstance : reservation.instances()) {
+                for (Tag tag : remoteInstance.tags()) {
+                    if (tag.key().equals(MANAGER_TO_APP_TAG)) {
+                        MANAGER_TO_APP_QUEUE_URL = tag.value();
+                    }
+                    else if (tag.key().equals(S3_BUCKET_TAG)) {
+                        S3_BUCKET_NAME = tag.value();
+                    }
+                    else if (tag.key().equals(SHARDS_TAG)) {
+                        runningShards = Integer.parseInt(tag.value());
                     }
                 }
             }
         }
+        connectShards(runningShards, false);
+        return runningShards;
+    }
+
+    // Finds the Manager shards, or starts shards Manager instances. Every shard has its own intake
+    // queue "AppToManagerQueue-<shard>" and owns the appIds the hash ring maps to it.
+    public void findOrCreateManager(int n, int shards, List<String> managerArgs) {
+        int runningShards = findManager();
+        if (runningShards > 0) {
+            System.out.println("Manager is already running.");
+            if (runningShards != shards) {
+                System.out.println("Using the running deployment's " + runningShards + " Manager shards.");
+            }
+            if (!managerArgs.isEmpty()) {
+                System.out.println("Using the running deployment's settings, " + managerArgs + " only apply to new Managers.");
+            }
+        }
         else {
-            System.out.println("Manager not found. Starting a new Manager instance...");
+            System.out.println("Manager not found. Starting " + shards + " Manager instance(s)...");
 
             // create SQS queues
             MANAGER_TO_APP_QUEUE_URL = createSqsQueue(MANAGER_TO_APP_TAG);
-            APP_TO_MANAGER_QUEUE_URL = createSqsQueue(APP_TO_MANAGER_TAG);
+            connectShards(shards, true);
 
             // create s3 bucket
             S3_BUCKET_NAME = S3_BUCKET_TAG + "-" + DateTimeFormatter.ofPattern("HHmmss").withZone(ZoneId.of("Asia/Jerusalem")).format(Instant.now());
@@ -161,82 +236,128 @@ public class AWS {
             // Upload the worker JAR to S3
             uploadToS3("Worker-1.0-SNAPSHOT.jar", "../Worker/target/Worker-1.0-SNAPSHOT.jar");
 
-            String script = 
-                        "#!/bin/bash\n" +
-                        "yum update -y\n" +
-                        "yum install java-17-amazon-corretto -y\n" +
-                        "cd /home/ec2-user\n" +
-                        "echo \"Downloading manager.jar\"\n" +
-                        "aws s3 cp s3://" + S3_BUCKET_NAME + "/Manager-1.0-SNAPSHOT.jar .\n" +
-                        "java -jar Manager-1.0-SNAPSHOT.jar " + n + " > /dev/console 2>&1"; 
-
-            RunInstancesRequest runRequest = RunInstancesRequest.builder()
-                .imageId(MANAGER_AMI_ID)
-                .instanceType(InstanceType.T3_LARGE)
-                .minCount(1)
-                .maxCount(1)
-                .keyName("vockey")
-                .userData(Base64.getEncoder().encodeToString(script.getBytes()))
-                .tagSpecifications(
-                    TagSpecification.builder()
-                    .resourceType(ResourceType.INSTANCE)
-                    .tags(
-                        Tag.builder().key("Name").value(MANAGER_TAG).build(),
-                        Tag.builder().key(APP_TO_MANAGER_TAG).value(APP_TO_MANAGER_QUEUE_URL).build(),
-                        Tag.builder().key(MANAGER_TO_APP_TAG).value(MANAGER_TO_APP_QUEUE_URL).build(),
-                        Tag.builder().key(S3_BUCKET_TAG).value(S3_BUCKET_NAME).build()
-                    )
-                    .build())
-                .iamInstanceProfile(
-                    IamInstanceProfileSpecification.builder()
-                    .name("LabInstanceProfile")
-                    .build())
-                .build();
+            for (int shard = 0; shard < shards; shard++) {
+                startManager(n, shard, shards, managerArgs);
+            }
+        }
+    }
 
-            ec2.runInstances(runRequest);
-            System.out.println("Manager instance started.");
+    // Intake queue URLs by shard. The queues of a running deployment are only looked up: a
+    // terminating Manager deletes them, and a queue created again would never be polled.
+    private void connectShards(int shards, boolean create) {
+        appToManagerQueueUrls.clear();
+        for (int shard = 0; shard < shards; shard++) {
+            String queueName = APP_TO_MANAGER_TAG + "-" + shard;
+            if (create) {
+                appToManagerQueueUrls.add(createSqsQueue(queueName));
+                continue;
+            }
+            try {
+                appToManagerQueueUrls.add(sqs.getQueueUrl(GetQueueUrlRequest.builder().queueName(queueName).build()).queueUrl());
+            } catch (QueueDoesNotExistException e) {
+                throw new IllegalStateException("Manager unavailable");
+            }
         }
+        shardRing = new ShardRing(shards);
     }
 
-    public Message receiveMessage(String appId) {
-        // Create the receive message request
-        ReceiveMessageRequest receiveRequest = ReceiveMessageRequest.builder()
-                .queueUrl(MANAGER_TO_APP_QUEUE_URL)
-                .maxNumberOfMessages(5) 
-                .waitTimeSeconds(20) 
-                .build();
+    // Single-quoted for sh, so an argument is passed on as one word whatever it contains
+    private static String shellQuote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
 
-        // Continuously poll the queue until we find our message
-        Message myMessage = null;
-        while(myMessage == null) {
-            List<Message> messages = sqs.receiveMessage(receiveRequest).messages();
-            for (Message message : messages) {
-                String[] bodyParts = message.body().split(":");
-
-                // Check if the message has our correlation ID - if not release it back to the queue
-                if (bodyParts.length > 2 && bodyParts[bodyParts.length - 1].equals(appId)) {
-                    sqs.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
-                            .queueUrl(MANAGER_TO_APP_QUEUE_URL)
-                            .receiptHandle(message.receiptHandle())
-                            .visibilityTimeout(100)
-                            .build());
-                    myMessage = message;
-                }
-                else {
-                    sqs.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
-                            .queueUrl(MANAGER_TO_APP_QUEUE_URL)
-                            .receiptHandle(message.receiptHandle())
-                            .visibilityTimeout(0)
-                            .build());
+    private void startManager(int n, int shard, int shards, List<String> managerArgs) {
+        String args = n + " shard=" + shard + " shards=" + shards;
+        for (String arg : managerArgs) {
+            args += " " + shellQuote(arg);
+        }
+        String script = 
+                    "#!/bin/bash\n" +
+                    "yum update -y\n" +
+                    "yum install java-17-amazon-corretto -y\n" +
+                    "cd /home/ec2-user\n" +
+                    "echo \"Downloading manager.jar\"\n" +
+                    "aws s3 cp s3://" + S3_BUCKET_NAME + "/Manager-1.0-SNAPSHOT.jar .\n" +
+                    // Restart the manager if it dies - it picks its jobs up again from the journal
+                    "until java -jar Manager-1.0-SNAPSHOT.jar " + args + " > /dev/console 2>&1; do\n" +
+                    "  echo \"Manager exited, restarting\" > /dev/console\n" +
+                    "  sleep 5\n" +
+                    "done";
+
+        RunInstancesRequest runRequest = RunInstancesRequest.builder()
+            .imageId(MANAGER_AMI_ID)
+            .instanceType(InstanceType.T3_LARGE)
+            .minCount(1)
+            .maxCount(1)
+            .keyName("vockey")
+            .userData(Base64.getEncoder().encodeToString(script.getBytes()))
+            .tagSpecifications(
+                TagSpecification.builder()
+                .resourceType(ResourceType.INSTANCE)
+                .tags(
+                    Tag.builder().key("Name").value(MANAGER_TAG).build(),
+                    Tag.builder().key(SHARD_TAG).value(String.valueOf(shard)).build(),
+                    Tag.builder().key(SHARDS_TAG).value(String.valueOf(shards)).build(),
+                    Tag.builder().key(APP_TO_MANAGER_TAG).value(appToManagerQueueUrls.get(shard)).build(),
+                    Tag.builder().key(MANAGER_TO_APP_TAG).value(MANAGER_TO_APP_QUEUE_URL).build(),
+                    Tag.builder().key(S3_BUCKET_TAG).value(S3_BUCKET_NAME).build()
+                )
+                .build())
+            .iamInstanceProfile(
+                IamInstanceProfileSpecification.builder()
+                .name("LabInstanceProfile")
+                .build())
+            .build();
+
+        ec2.runInstances(runRequest);
+        System.out.println("Manager shard " + shard + " instance started.");
+    }
+
+    // Private reply queue of one client - the Manager sends everything for appId there
+    // Returns once the queue can be looked up by name, so the Manager finds it when the job arrives
+    // (a queue isn't visible everywhere right after it is created)
+    public String createReplyQueue(String appId) throws InterruptedException {
+        String queueUrl = createSqsQueue(replyQueueName(appId));
+        GetQueueUrlRequest lookup = GetQueueUrlRequest.builder().queueName(replyQueueName(appId)).build();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                sqs.getQueueUrl(lookup);
+                return queueUrl;
+            } catch (QueueDoesNotExistException e) {
+                if (attempt == REPLY_QUEUE_LOOKUPS) {
+                    throw e;
                 }
+                Thread.sleep(500L << attempt);
             }
         }
-        return myMessage;
     }
 
-    public void deleteMessage(Message message) {
+    public static String replyQueueName(String appId) {
+        return MANAGER_TO_APP_TAG + "-" + appId;
+    }
+
+    public void deleteQueue(String queueUrl) {
+        sqs.deleteQueue(DeleteQueueRequest.builder().queueUrl(queueUrl).build());
+    }
+
+    public Message receiveMessage(String replyQueueUrl) {
+        ReceiveMessageRequest receiveRequest = ReceiveMessageRequest.builder()
+                .queueUrl(replyQueueUrl)
+                .maxNumberOfMessages(1)
+                .waitTimeSeconds(20)
+                .build();
+
+        // Only our own messages are in the queue - just wait for the next one
+        List<Message> messages = sqs.receiveMessage(receiveRequest).messages();
+        while (messages.isEmpty()) {
+            messages = sqs.receiveMessage(receiveRequest).messages();
+        }
+        return messages.get(0);
+    }
+
+    public void deleteMessage(Message message, String replyQueueUrl) {
         DeleteMessageRequest deleteRequest = DeleteMessageRequest.builder()
-                .queueUrl(MANAGER_TO_APP_QUEUE_URL)
+                .queueUrl(replyQueueUrl)
                 .receiptHandle(message.receiptHandle())
                 .build();
         sqs.deleteMessage(deleteRequest);
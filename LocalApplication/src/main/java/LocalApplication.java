@@ -2,26 +2,77 @@ import java.io.IOException;
 
 import software.amazon.awssdk.services.sqs.model.Message;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.nio.file.Files;
 
 public class LocalApplication {
 
     final static AWS aws = AWS.getInstance();
 
+    private static final String BATCH_MODE = "batch";
+    private static final String QUERY_MODE = "query";
+    private static final String ENTRY_MODE = "entry";
+    // Jobs of one batch that run at the same time (each holds a long poll while it waits)
+    private static final int MAX_CONCURRENT_JOBS = 32;
+    // Separates the inputs of a batch from its settings
+    private static final String SETTINGS_SEPARATOR = "--";
+    // Deployment setting: the Managers this run starts have their workers run Flight Recorder
+    private static final String PROFILE_SETTING = "profile";
+    // Job options the Manager knows (see JobOptions in the Manager)
+    private static final List<String> JOB_OPTIONS = Arrays.asList("archive", "compress", "stats", "index");
+    // The analysis types each worker engine can run, for <ANALYSIS_TYPE>=<engine> settings
+    private static final Map<String, List<String>> ENGINES = new HashMap<>();
+    static {
+        ENGINES.put("POS", Arrays.asList("pcfg", "tagger"));
+        ENGINES.put("CONSTITUENCY", Arrays.asList("pcfg", "sr"));
+        ENGINES.put("DEPENDENCY", Arrays.asList("pcfg", "sr", "nndep"));
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0 && BATCH_MODE.equalsIgnoreCase(args[0])) {
+            runBatch(args);
+            return;
+        }
+        if (args.length > 0 && QUERY_MODE.equalsIgnoreCase(args[0])) {
+            runQuery(args);
+            return;
+        }
+        if (args.length > 0 && ENTRY_MODE.equalsIgnoreCase(args[0])) {
+            runEntry(args);
+            return;
+        }
+
         if (args.length < 3) {
-            System.out.println("Usage: java -jar yourjar.jar <inputFileName> <outputFileName> <n> [terminate]");
+            printUsage();
             return;
         }
 
-        String appId = UUID.randomUUID().toString();
         String inputFileName = args[0];
         String outputFileName = args[1];
         int n = Integer.parseInt(args[2]);
-        boolean terminate = args.length > 3 && "terminate".equalsIgnoreCase(args[3]);
+        JobSettings settings;
+        try {
+            settings = new JobSettings(args, 3);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            aws.cleanup();
+            return;
+        }
 
         try {
             // validate inputs
@@ -29,48 +80,393 @@ public class LocalApplication {
                 return;
             }
 
-            // check if a Manager node is active, else - start one
-            aws.findOrCreateManager(n);
+            Job job = new Job(inputFileName, outputFileName);
+            // check if the Manager shards are active, else - start them
+            try {
+                aws.findOrCreateManager(n, settings.shards, settings.managerArgs);
+            } catch (Exception e) {
+                job.fail(e);
+                return;
+            }
+
+            job.run(settings);
+
+            // if terminate mode - send termination message to the Manager
+            if (settings.terminate) {
+                aws.sendMessageToAllManagers("terminate");
+                System.out.println("Sent terminate message to Manager.");
+            }
+        }
+        finally {
+            aws.cleanup();
+        }
+    }
+
+    // Submits every input file of the batch over the same SDK clients and Manager, and tracks
+    // all of them at once. Input names are relative to data/, directories stand for all their .txt
+    // files, and the settings come after "--". The output of data/<name>.txt is data/<name>.html.
+    private static void runBatch(String[] args) {
+        if (args.length < 3) {
+            printUsage();
+            return;
+        }
 
-            // upload the input file to S3
-            String s3Key = "inputs/" + appId + "/" + Paths.get(inputFileName).getFileName().toString();
-            aws.uploadToS3(s3Key, "data/" + inputFileName);
+        int n = Integer.parseInt(args[1]);
+        List<String> inputs = new ArrayList<>();
+        int firstOption = 2;
+        while (firstOption < args.length && !SETTINGS_SEPARATOR.equals(args[firstOption])) {
+            inputs.addAll(listInputFiles(args[firstOption]));
+            firstOption++;
+        }
+        JobSettings settings;
+        try {
+            settings = new JobSettings(args, firstOption + 1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            aws.cleanup();
+            return;
+        }
 
-            // send a message to an SQS queue saying where the location of the file in S3
-            String messageBody = "new task:" + s3Key + ":" + appId;
-            aws.sendMessage(messageBody);
-            System.out.println("Sent new task message to Manager.");
+        List<Job> jobs = new ArrayList<>();
+        for (String inputFileName : inputs) {
+            String outputFileName = inputFileName.substring(0, inputFileName.length() - ".txt".length()) + ".html";
+            if (validateInputs(inputFileName, outputFileName, n)) {
+                jobs.add(new Job(inputFileName, outputFileName));
+            }
+        }
+        if (jobs.isEmpty()) {
+            System.err.println("Error: No valid input files.");
+            aws.cleanup();
+            return;
+        }
 
-            // check the SQS for message indicating that process is done
-            System.out.println("Waiting for completion message from Manager...");
-            Message doneMessage = aws.receiveMessage(appId);
-            String doneS3Key = doneMessage.body().split(":")[1];
-            System.out.println("Received completion message.");
+        ExecutorService runners = Executors.newFixedThreadPool(Math.min(jobs.size(), MAX_CONCURRENT_JOBS));
+        try {
+            // The Manager is discovered once for the whole session
+            try {
+                aws.findOrCreateManager(n, settings.shards, settings.managerArgs);
+            } catch (Exception e) {
+                for (Job job : jobs) {
+                    job.fail(e);
+                }
+                return;
+            }
 
-            // get the summary output file from S3
-            aws.downloadFromS3(doneS3Key, "data/" + outputFileName);
+            // Each job uploads, submits and waits on its own thread
+            List<Future<Boolean>> completions = new ArrayList<>();
+            for (Job job : jobs) {
+                completions.add(runners.submit(() -> job.run(settings)));
+            }
 
-            // delete the "done" message from the queue
-            aws.deleteMessage(doneMessage);
+            int succeeded = 0;
+            for (Future<Boolean> completion : completions) {
+                try {
+                    if (completion.get()) {
+                        succeeded++;
+                    }
+                } catch (ExecutionException e) {
+                    System.err.println("A job failed: " + e.getCause().getMessage());
+                }
+            }
+            System.out.println("Batch finished: " + succeeded + " of " + jobs.size() + " jobs completed.");
 
-            // if terminate mode - send termination message to the Manager
-            if (terminate) {
-                aws.sendMessage("terminate");
+            if (settings.terminate) {
+                aws.sendMessageToAllManagers("terminate");
                 System.out.println("Sent terminate message to Manager.");
             }
-        } 
-        catch (Exception e) {
-            // handle local exceptions appropriately : tell manager to cancel the operation
-            System.err.println("An error occurred: " + e.getMessage());
-            String messageBody = "cancel operation:" + appId;
-            aws.sendMessage(messageBody);
-            System.out.println("Sent cancel operation message to Manager.");
-        } 
-        finally {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            runners.shutdownNow();
             aws.cleanup();
         }
     }
 
+    // Prints the sentences that have all the keys (e.g. "rel:nsubjpass/kill" or "attach:NP>PP"),
+    // reading only those sentences from the results. The index file is relative to data/,
+    // as downloaded by a job with the index option.
+    private static void runQuery(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java -jar yourjar.jar query <indexFile> <key>...");
+            return;
+        }
+        try {
+            ResultIndex index = ResultIndex.load(Paths.get("data", args[1]));
+            List<ResultIndex.Hit> hits = index.find(Arrays.copyOfRange(args, 2, args.length));
+            for (ResultIndex.Hit hit : hits) {
+                System.out.println(hit.file.type + " " + hit.file.url + "\t" + index.read(hit));
+            }
+            System.out.println(hits.size() + " matching sentences.");
+        } catch (IOException e) {
+            System.err.println("Error: Query failed: " + e.getMessage());
+        }
+    }
+
+    // Prints one result of a job with the archive option, fetching only its entry of the
+    // archive in S3 (a ranged GET) - the rest of the archive is never downloaded.
+    private static void runEntry(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: java -jar yourjar.jar entry <appId> <TYPE> <URL>");
+            return;
+        }
+        try {
+            if (aws.findManager() == 0) {
+                System.err.println("Error: No Manager is running.");
+                return;
+            }
+            ResultArchive archive = ResultArchive.open(args[1]);
+            ResultArchive.Entry entry = archive.find(args[2], args[3]);
+            if (entry == null) {
+                System.err.println("Error: No " + args[2] + " result for " + args[3] + " in the archive of " + args[1] + ".");
+                return;
+            }
+            System.out.println(archive.read(entry));
+        } catch (Exception e) {
+            System.err.println("Error: Reading the archive entry failed: " + e.getMessage());
+        } finally {
+            aws.cleanup();
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java -jar yourjar.jar <inputFileName> <outputFileName> <n> [settings...]");
+        System.out.println("       java -jar yourjar.jar batch <n> <inputFileOrDirectory>... [-- settings...]");
+        System.out.println("       java -jar yourjar.jar query <indexFile> <key>...");
+        System.out.println("       java -jar yourjar.jar entry <appId> <TYPE> <URL>");
+        System.out.println("Settings: [terminate] [fetch] [shards=<k>] [<TYPE>=<engine>] [warmPool=<workers>] [idleTimeout=<minutes>] [profile] [deadline=<minutes>] [archive] [compress] [stats] [index]");
+    }
+
+    private static List<String> listInputFiles(String name) {
+        Path path = Paths.get("data", name);
+        List<String> files = new ArrayList<>();
+        if (!Files.isDirectory(path)) {
+            files.add(name);
+            return files;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(path, "*.txt")) {
+            for (Path entry : entries) {
+                files.add(Paths.get("data").relativize(entry).toString());
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Unable to list input directory " + path + ": " + e.getMessage());
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    // Trailing arguments shared by all jobs of a run
+    private static class JobSettings {
+        boolean terminate = false;
+        boolean fetch = false;
+        // Manager instances to start if none is running - each owns a share of the appIds
+        int shards = 1;
+        // Minutes from submission the results are needed in, 0 for no deadline
+        long deadlineMinutes = 0;
+        // Arguments of the Managers this run starts, e.g. "POS=tagger" for the workers' default engine of a type
+        final List<String> managerArgs = new ArrayList<>();
+        // Job options for the Manager
+        final List<String> options = new ArrayList<>();
+
+        JobSettings(String[] args, int from) {
+            for (int i = from; i < args.length; i++) {
+                if ("terminate".equalsIgnoreCase(args[i])) {
+                    terminate = true;
+                } else if ("fetch".equalsIgnoreCase(args[i])) {
+                    fetch = true;
+                } else if (args[i].toLowerCase().startsWith("deadline=")) {
+                    String value = args[i].substring("deadline=".length());
+                    if (!value.matches("\\d{1,6}") || Long.parseLong(value) < 1) {
+                        throw new IllegalArgumentException("deadline must be a positive number of minutes, got: " + value);
+                    }
+                    deadlineMinutes = Long.parseLong(value);
+                } else if (args[i].toLowerCase().startsWith("shards=")) {
+                    String value = args[i].substring("shards=".length());
+                    if (!value.matches("\\d{1,3}") || Integer.parseInt(value) < 1) {
+                        throw new IllegalArgumentException("shards must be a positive number, got: " + value);
+                    }
+                    shards = Integer.parseInt(value);
+                } else if (args[i].contains("=") && ENGINES.containsKey(args[i].split("=", 2)[0].toUpperCase())) {
+                    String type = args[i].split("=", 2)[0].toUpperCase();
+                    String engine = args[i].split("=", 2)[1].toLowerCase();
+                    if (!ENGINES.get(type).contains(engine)) {
+                        throw new IllegalArgumentException(type + " can't run on engine " + engine + ", use one of " + ENGINES.get(type));
+                    }
+                    managerArgs.add(type + "=" + engine);
+                } else if (args[i].startsWith("warmPool=") || args[i].startsWith("idleTimeout=")) {
+                    // Workers kept running / minutes idle before scale-in, for the Managers this run starts
+                    String[] keyValue = args[i].split("=", 2);
+                    if (!keyValue[1].matches("\\d{1,4}")) {
+                        throw new IllegalArgumentException(keyValue[0] + " must be a non-negative number, got: " + keyValue[1]);
+                    }
+                    managerArgs.add(keyValue[0] + "=" + Integer.parseInt(keyValue[1]));
+                } else if (PROFILE_SETTING.equalsIgnoreCase(args[i])) {
+                    managerArgs.add(PROFILE_SETTING);
+                } else if (JOB_OPTIONS.contains(args[i].toLowerCase())) {
+                    options.add(args[i].toLowerCase());
+                } else {
+                    throw new IllegalArgumentException("Unknown setting: " + args[i]);
+                }
+            }
+        }
+    }
+
+    // One input file: its own appId, reply queue and output
+    private static class Job {
+        final String appId = UUID.randomUUID().toString();
+        final String inputFileName;
+        final String outputFileName;
+        String replyQueueUrl;
+
+        Job(String inputFileName, String outputFileName) {
+            this.inputFileName = inputFileName;
+            this.outputFileName = outputFileName;
+        }
+
+        boolean run(JobSettings settings) {
+            return submit(settings) && awaitAndDownload(settings);
+        }
+
+        boolean submit(JobSettings settings) {
+            try {
+                // create our private reply queue before the Manager can answer
+                replyQueueUrl = aws.createReplyQueue(appId);
+
+                // upload the input file to S3
+                String s3Key = "inputs/" + appId + "/" + Paths.get(inputFileName).getFileName().toString();
+                aws.uploadToS3(s3Key, "data/" + inputFileName);
+
+                // send a message to an SQS queue saying where the location of the file in S3
+                String messageBody = "new task:" + s3Key + ":" + appId;
+                List<String> options = new ArrayList<>(settings.options);
+                if (settings.deadlineMinutes > 0) {
+                    // Relative - the Manager counts it from when SQS received this message, not by our clock
+                    options.add("deadline=" + settings.deadlineMinutes);
+                }
+                if (!options.isEmpty()) {
+                    messageBody += ":" + String.join(",", options);
+                }
+                aws.sendMessage(appId, messageBody);
+                System.out.println("Sent new task message to Manager for " + inputFileName + " (appId " + appId + ").");
+                return true;
+            } catch (Exception e) {
+                fail(e);
+                return false;
+            }
+        }
+
+        boolean awaitAndDownload(JobSettings settings) {
+            try {
+                // show progress (and fetch finished results) until the Manager says the job is done
+                System.out.println("Waiting for completion message from Manager for " + inputFileName + "...");
+                String baseName = outputFileName.substring(0, outputFileName.length() - ".html".length());
+                Message doneMessage = awaitCompletion(inputFileName, replyQueueUrl, settings.fetch ? "data/" + baseName : null);
+                String doneS3Key = doneMessage.body().split(":")[1];
+                System.out.println("Received completion message for " + inputFileName + ".");
+
+                // get the summary output file from S3
+                aws.downloadFromS3(doneS3Key, "data/" + outputFileName);
+
+                // get the result archive and its index (one object each) if the job asked for them
+                if (settings.options.contains("archive")) {
+                    try {
+                        downloadReplacing(ResultArchive.archiveKey(appId), "data/" + baseName + ".results.gz");
+                        downloadReplacing(ResultArchive.indexKey(appId), "data/" + baseName + ".results.idx");
+                    } catch (Exception e) {
+                        // Invalid input, termination or a failed archive build - the summary has the details
+                        System.err.println("No result archive available for " + inputFileName + ": " + e.getMessage());
+                    }
+                }
+
+                // get the sentence index if the job asked for one (queried with "query <output>.index.gz <key>...")
+                if (settings.options.contains("index")) {
+                    try {
+                        downloadReplacing(ResultIndex.indexKey(appId), "data/" + baseName + ".index.gz");
+                    } catch (Exception e) {
+                        System.err.println("No sentence index available for " + inputFileName + ": " + e.getMessage());
+                    }
+                }
+
+                // get the corpus statistics if the job asked for them
+                if (settings.options.contains("stats")) {
+                    try {
+                        downloadReplacing("outputs/" + appId + "/stats.txt", "data/" + baseName + ".stats.txt");
+                    } catch (Exception e) {
+                        System.err.println("No corpus statistics available for " + inputFileName + ": " + e.getMessage());
+                    }
+                }
+
+                // delete the "done" message from the queue
+                aws.deleteMessage(doneMessage, replyQueueUrl);
+                aws.deleteQueue(replyQueueUrl);
+                return true;
+            } catch (Exception e) {
+                fail(e);
+                return false;
+            }
+        }
+
+        // handle local exceptions appropriately : tell manager to cancel the operation
+        void fail(Exception e) {
+            System.err.println("An error occurred for " + inputFileName + ": " + e.getMessage());
+            try {
+                aws.sendMessage(appId, "cancel operation:" + appId);
+                System.out.println("Sent cancel operation message to Manager for " + inputFileName + ".");
+                if (replyQueueUrl != null) {
+                    aws.deleteQueue(replyQueueUrl);
+                }
+            } catch (Exception cleanupError) {
+                System.err.println("Cleanup failed for " + inputFileName + ": " + cleanupError.getMessage());
+            }
+        }
+    }
+
+    // Handles progress messages until the "done:" message arrives, which is returned (not deleted).
+    // Progress:       progress <completed>/<total> <appId>
+    // Finished entry: entry <completed>/<total> <ANALYSIS_TYPE> <URL> <result> <appId>
+    private static Message awaitCompletion(String label, String replyQueueUrl, String fetchDirectory) throws IOException {
+        if (fetchDirectory != null) {
+            Files.createDirectories(Paths.get(fetchDirectory));
+        }
+        while (true) {
+            Message message = aws.receiveMessage(replyQueueUrl);
+            String body = message.body();
+            if (body.startsWith("done:")) {
+                return message;
+            }
+
+            String[] parts = body.split(" ");
+            if (body.startsWith("progress ")) {
+                System.out.println(label + " progress: " + parts[1] + " tasks done");
+            } else if (body.startsWith("entry ")) {
+                String result = parts[4];
+                System.out.println(label + " progress: " + parts[1] + " tasks done - finished " + parts[2] + " " + parts[3]
+                        + (result.startsWith("ERROR:") ? " with " + result : ""));
+                if (fetchDirectory != null && !result.startsWith("ERROR:")) {
+                    fetchResult(fetchDirectory, parts[2], parts[3], result);
+                }
+            }
+            aws.deleteMessage(message, replyQueueUrl);
+        }
+    }
+
+    // Saves one finished result as <directory>/<TYPE>-<source file name>, in plain text
+    private static void fetchResult(String directory, String type, String url, String resultUrl) {
+        Path target = Paths.get(directory, type + "-" + url.substring(url.lastIndexOf('/') + 1));
+        try {
+            Files.write(target, aws.downloadResultFromS3(aws.keyFromPublicUrl(resultUrl)).getBytes(StandardCharsets.UTF_8));
+            System.out.println("Fetched result to " + target);
+        } catch (Exception e) {
+            // The link stays in the summary - don't fail the job over it
+            System.err.println("Failed to fetch " + resultUrl + ": " + e.getMessage());
+        }
+    }
+
+    private static void downloadReplacing(String s3Key, String localPath) throws IOException {
+        Files.deleteIfExists(Paths.get(localPath));
+        aws.downloadFromS3(s3Key, localPath);
+    }
+
     private static boolean validateInputs(String inputFileName, String outputFileName, int n) {
         // checks of the input file
         Path inputFilePath = Paths.get("data", inputFileName);
@@ -0,0 +1,99 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+// Client side of the Manager's result archive: outputs/<appId>/results.gz holds one gzip member
+// per processed result and outputs/<appId>/results.idx says where each member starts.
+// A job with the archive option downloads both; single entries are read with ranged GETs
+// (the "entry" mode) so the whole archive never has to be downloaded for them.
+public class ResultArchive {
+
+    private static final AWS aws = AWS.getInstance();
+
+    private final String archiveKey;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private ResultArchive(String archiveKey, String index) {
+        this.archiveKey = archiveKey;
+        for (String line : index.split("\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", 5);
+            entries.add(new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+        }
+    }
+
+    public static String archiveKey(String appId) {
+        return "outputs/" + appId + "/results.gz";
+    }
+
+    public static String indexKey(String appId) {
+        return "outputs/" + appId + "/results.idx";
+    }
+
+    // The archive of a job on S3 (while the Manager is running) - only its index is downloaded
+    public static ResultArchive open(String appId) {
+        String index = new String(aws.downloadBytesFromS3(indexKey(appId)), StandardCharsets.UTF_8);
+        return new ResultArchive(archiveKey(appId), index);
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    // The entry of one (type, URL), null if the archive has none
+    public Entry find(String type, String url) {
+        for (Entry entry : entries) {
+            if (entry.type.equals(type) && entry.url.equals(url)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public String read(Entry entry) throws IOException {
+        if (!entry.isOk()) {
+            throw new IOException("No result for " + entry.type + " " + entry.url + ": " + entry.status);
+        }
+        byte[] member = aws.downloadRangeFromS3(archiveKey, entry.offset, entry.length);
+        return gunzip(member);
+    }
+
+    static String gunzip(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class Entry {
+        public final String type;
+        public final String url;
+        public final long offset;
+        public final long length;
+        public final String status;
+
+        Entry(String type, String url, long offset, long length, String status) {
+            this.type = type;
+            this.url = url;
+            this.offset = offset;
+            this.length = length;
+            this.status = status;
+        }
+
+        public boolean isOk() {
+            return status.equals("OK");
+        }
+    }
+}
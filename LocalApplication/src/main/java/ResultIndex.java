@@ -0,0 +1,137 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Client side of the Manager's sentence index: outputs/<appId>/index.gz maps keys such as
+// tag:NNP, lemma:run, attach:NP>PP or rel:nsubjpass/kill to the sentences that have them, as
+// byte ranges of the public result objects. Matching sentences are read with ranged GETs, so
+// a query never downloads whole results (except results the workers stored gzip compressed,
+// which are fetched once and cut locally).
+public class ResultIndex {
+
+    private final List<IndexedFile> files = new ArrayList<>();
+    // key -> postings text "<file>@<offset>+<length> ...", parsed on first use
+    private final Map<String, String> postings = new HashMap<>();
+    private final Map<Integer, byte[]> decompressed = new HashMap<>();
+
+    private ResultIndex(String index) {
+        for (String line : index.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0) {
+                continue;
+            }
+            if (line.startsWith("file\t")) {
+                String[] fields = line.split("\t", 6);
+                files.add(new IndexedFile(fields[2], fields[3], fields[4], fields[5].equals("gzip")));
+            } else {
+                postings.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+        }
+    }
+
+    public static String indexKey(String appId) {
+        return "outputs/" + appId + "/index.gz";
+    }
+
+    // An index downloaded before, e.g. data/<output>.index.gz
+    public static ResultIndex load(Path indexFile) throws IOException {
+        return new ResultIndex(ResultArchive.gunzip(Files.readAllBytes(indexFile)));
+    }
+
+    // Sentences that have every one of the keys, in result order
+    public List<Hit> find(String... keys) {
+        Set<String> matches = null;
+        for (String key : keys) {
+            String keyPostings = postings.get(key);
+            Set<String> keyMatches = new LinkedHashSet<>(keyPostings == null ? new ArrayList<>() : Arrays.asList(keyPostings.split(" ")));
+            if (matches == null) {
+                matches = keyMatches;
+            } else {
+                matches.retainAll(keyMatches);
+            }
+        }
+        List<Hit> hits = new ArrayList<>();
+        if (matches == null) {
+            return hits;
+        }
+        for (String pointer : matches) {
+            int at = pointer.indexOf('@');
+            int plus = pointer.indexOf('+', at);
+            int file = Integer.parseInt(pointer.substring(0, at));
+            hits.add(new Hit(files.get(file), file, Long.parseLong(pointer.substring(at + 1, plus)), Integer.parseInt(pointer.substring(plus + 1))));
+        }
+        return hits;
+    }
+
+    // The analysis of one matching sentence
+    public String read(Hit hit) throws IOException {
+        if (!hit.file.compressed) {
+            return new String(get(hit.file.resultUrl, "bytes=" + hit.offset + "-" + (hit.offset + hit.length - 1)), StandardCharsets.UTF_8);
+        }
+        byte[] result = decompressed.get(hit.fileNumber);
+        if (result == null) {
+            result = ResultArchive.gunzip(get(hit.file.resultUrl, null)).getBytes(StandardCharsets.UTF_8);
+            decompressed.put(hit.fileNumber, result);
+        }
+        return new String(result, (int) hit.offset, hit.length, StandardCharsets.UTF_8);
+    }
+
+    // Results are public-read, so no credentials or Manager are needed to read them
+    private static byte[] get(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public static class IndexedFile {
+        public final String type;
+        public final String url;
+        public final String resultUrl;
+        final boolean compressed;
+
+        IndexedFile(String type, String url, String resultUrl, boolean compressed) {
+            this.type = type;
+            this.url = url;
+            this.resultUrl = resultUrl;
+            this.compressed = compressed;
+        }
+    }
+
+    public static class Hit {
+        public final IndexedFile file;
+        final int fileNumber;
+        public final long offset;
+        public final int length;
+
+        Hit(IndexedFile file, int fileNumber, long offset, int length) {
+            this.file = file;
+            this.fileNumber = fileNumber;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
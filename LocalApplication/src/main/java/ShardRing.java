@@ -0,0 +1,42 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hash ring over the Manager shards. Every shard owns VIRTUAL_NODES points on the ring
+// and an appId belongs to the shard of the first point at or after the appId's hash, so the jobs
+// spread evenly and a deployment with one more shard only moves the appIds the new shard takes over.
+class ShardRing {
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    ShardRing(int shards) {
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(hash("shard-" + shard + "#" + node), shard);
+            }
+        }
+    }
+
+    int shardOf(String appId) {
+        Map.Entry<Long, Integer> owner = ring.ceilingEntry(hash(appId));
+        return (owner != null ? owner : ring.firstEntry()).getValue();
+    }
+
+    // First 8 bytes of the MD5 digest - well spread for UUIDs and short names alike
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 unavailable", e);
+        }
+    }
+}
@@ -1,3 +1,4 @@
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.regions.Region;
@@ -17,23 +18,39 @@ import software.amazon.awssdk.services.ec2.model.IamInstanceProfileSpecification
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Object;
 import software.amazon.awssdk.services.sqs.SqsClient;
 import software.amazon.awssdk.services.sqs.model.CreateQueueRequest;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.services.sqs.model.DeleteQueueRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
 import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueDoesNotExistException;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 import software.amazon.awssdk.services.ec2.model.Filter;
 
 import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AWS {
     private final S3Client s3;
@@ -44,17 +61,34 @@ public class AWS {
     private static final String APP_TO_MANAGER_TAG = "AppToManagerQueue";
     private static final String WORKER_TO_MANAGER_TAG = "WorkerToManagerQueue";
     private static final String MANAGER_TO_WORKER_TAG = "ManagerToWorkerQueue";
+    private static final String DEAD_LETTER_TAG = "ManagerToWorkerDLQ";
+    private static final String HEARTBEAT_TAG = "WorkerHeartbeatQueue";
     private static final String MANAGER_TAG = "Manager";
     private static final String WORKER_TAG = "Worker";
     private static final String S3_BUCKET_TAG = "s3bucket";
+    private static final String SHARD_TAG = "shard";
     private static final String WORKER_AMI_ID = "ami-062055da0d1530fdf";
+    // The worker drains for up to 60 seconds on SIGTERM - leave room for the release calls
+    private static final int WORKER_STOP_TIMEOUT_SECONDS = 90;
+    // Uploaded last by the worker building the startup snapshot (see createWorkers)
+    static final String STARTUP_ARCHIVE_KEY = "startup/worker.jsa";
+    private static final long REPLY_QUEUE_RECHECK_MILLIS = 30_000;
 
     private String MANAGER_TO_APP_QUEUE_URL;
     private String APP_TO_MANAGER_QUEUE_URL;
+    // This shard's result queue, and the result queue of every shard ("WorkerToManagerQueue-<shard>")
     private String WORKER_TO_MANAGER_QUEUE_URL;
-    private String MANAGER_TO_WORKER_QUEUE_URL;
+    private final List<String> workerToManagerQueueUrls = new ArrayList<>();
+    private int SHARD;
+    // One work queue per analysis type, "ManagerToWorkerQueue-<TYPE>", keyed by type
+    private final Map<String, String> workerQueueUrls = new LinkedHashMap<>();
+    private String DEAD_LETTER_QUEUE_URL;
+    private String HEARTBEAT_QUEUE_URL;
     private String S3_BUCKET_NAME;
     private String INSTANCE_ID;
+    private final ConcurrentHashMap<String, String> replyQueueUrls = new ConcurrentHashMap<>();
+    // appId -> when its reply queue was last looked up and not found
+    private final ConcurrentHashMap<String, Long> missingReplyQueues = new ConcurrentHashMap<>();
 
     public static Region region = Region.US_EAST_1;
 
@@ -70,10 +104,13 @@ public class AWS {
         return instance;
     }
 
-    public void getEC2Tags() {
+    // Reads the queue URLs and the bucket from the tags of this shard's Manager instance
+    public void getEC2Tags(int shard) {
+        SHARD = shard;
         DescribeInstancesRequest request = DescribeInstancesRequest.builder()
                 .filters(Filter.builder().name("instance-state-name").values("running", "pending").build(),
-                        Filter.builder().name("tag:Name").values(MANAGER_TAG).build())
+                        Filter.builder().name("tag:Name").values(MANAGER_TAG).build(),
+                        Filter.builder().name("tag:" + SHARD_TAG).values(String.valueOf(shard)).build())
                 .build();
         DescribeInstancesResponse response = ec2.describeInstances(request);
 
@@ -111,10 +148,17 @@ public class AWS {
                 .queueUrl(queueUrl)
                 .maxNumberOfMessages(1)
                 .waitTimeSeconds(20)
+                .attributeNamesWithStrings(MessageSystemAttributeName.SENT_TIMESTAMP.toString())
                 .build();
         return sqs.receiveMessage(receiveRequest).messages();
     }
 
+    // When the sender put the message on the queue, in epoch millis (now if SQS didn't say)
+    public static long sentTimestamp(Message message) {
+        String sent = message.attributes().get(MessageSystemAttributeName.SENT_TIMESTAMP);
+        return sent != null ? Long.parseLong(sent) : System.currentTimeMillis();
+    }
+
     private void deleteMessage(Message message, String queueUrl) {
         DeleteMessageRequest deleteRequest = DeleteMessageRequest.builder()
                 .queueUrl(queueUrl)
@@ -130,6 +174,42 @@ public class AWS {
                 .build());
     }
 
+    // Visible and in-flight message counts per queue, e.g. "ManagerToWorkerQueue-POS" -> {120, 8}
+    public Map<String, int[]> getQueueDepths() {
+        Map<String, String> queues = new LinkedHashMap<>();
+        queues.put(APP_TO_MANAGER_TAG, APP_TO_MANAGER_QUEUE_URL);
+        for (Map.Entry<String, String> workerQueue : workerQueueUrls.entrySet()) {
+            queues.put(MANAGER_TO_WORKER_TAG + "-" + workerQueue.getKey(), workerQueue.getValue());
+        }
+        queues.put(WORKER_TO_MANAGER_TAG + "-" + SHARD, WORKER_TO_MANAGER_QUEUE_URL);
+        queues.put(DEAD_LETTER_TAG, DEAD_LETTER_QUEUE_URL);
+        queues.put(HEARTBEAT_TAG, HEARTBEAT_QUEUE_URL);
+
+        Map<String, int[]> depths = new LinkedHashMap<>();
+        for (Map.Entry<String, String> queue : queues.entrySet()) {
+            if (queue.getValue() != null) {
+                depths.put(queue.getKey(), getQueueDepth(queue.getValue()));
+            }
+        }
+        return depths;
+    }
+
+    // Visible and in-flight message counts of one analysis type's worker queue
+    public int[] getWorkerQueueDepth(String analysisType) {
+        return getQueueDepth(workerQueueUrls.get(analysisType));
+    }
+
+    private int[] getQueueDepth(String queueUrl) {
+        Map<QueueAttributeName, String> attributes = sqs.getQueueAttributes(GetQueueAttributesRequest.builder()
+                .queueUrl(queueUrl)
+                .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES,
+                        QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE)
+                .build()).attributes();
+        return new int[]{
+                Integer.parseInt(attributes.get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)),
+                Integer.parseInt(attributes.get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE))};
+    }
+
     public List<Message> receiveMessagesFromLocalApplication() {
         return receiveMessages(APP_TO_MANAGER_QUEUE_URL);
     }
@@ -146,12 +226,55 @@ public class AWS {
         deleteMessage(message, WORKER_TO_MANAGER_QUEUE_URL);
     }
 
-    public void sendMessageToLocalApplication(String messageBody) {
-        sendMessage(messageBody, MANAGER_TO_APP_QUEUE_URL);
+    // Every client has its own reply queue named ManagerToAppQueue-<appId>.
+    // Clients without one still get their messages on the shared queue.
+    public void sendMessageToLocalApplication(String appId, String messageBody) {
+        String queueUrl = replyQueueUrl(appId, true);
+        sendMessage(messageBody, queueUrl != null ? queueUrl : MANAGER_TO_APP_QUEUE_URL);
+    }
+
+    // True if appId has its own reply queue (and can take more than the final "done:" message)
+    public boolean hasReplyQueue(String appId) {
+        return replyQueueUrl(appId, false) != null;
+    }
+
+    // Called once a client got its final message
+    public void forgetReplyQueue(String appId) {
+        replyQueueUrls.remove(appId);
+        missingReplyQueues.remove(appId);
+    }
+
+    // null if appId has no reply queue. Only queues that were found are cached - a new queue may
+    // not be visible yet, so a miss is looked up again before every message sent and otherwise
+    // after REPLY_QUEUE_RECHECK_MILLIS.
+    private String replyQueueUrl(String appId, boolean sending) {
+        String queueUrl = replyQueueUrls.get(appId);
+        if (queueUrl != null) {
+            return queueUrl;
+        }
+        Long missedAt = missingReplyQueues.get(appId);
+        if (!sending && missedAt != null && System.currentTimeMillis() - missedAt < REPLY_QUEUE_RECHECK_MILLIS) {
+            return null;
+        }
+        try {
+            queueUrl = sqs.getQueueUrl(GetQueueUrlRequest.builder().queueName(MANAGER_TO_APP_TAG + "-" + appId).build()).queueUrl();
+            replyQueueUrls.put(appId, queueUrl);
+            missingReplyQueues.remove(appId);
+            return queueUrl;
+        } catch (QueueDoesNotExistException e) {
+            missingReplyQueues.put(appId, System.currentTimeMillis());
+            return null;
+        }
+    }
+
+    // Shard 0 manages the worker fleet all shards share
+    public void sendMessageToFleetOwner(String messageBody) {
+        String queueUrl = sqs.getQueueUrl(GetQueueUrlRequest.builder().queueName(APP_TO_MANAGER_TAG + "-0").build()).queueUrl();
+        sendMessage(messageBody, queueUrl);
     }
 
-    public void sendMessageToWorkers(String messageBody) {
-        sendMessage(messageBody, MANAGER_TO_WORKER_QUEUE_URL);
+    public void sendMessageToWorkers(String analysisType, String messageBody) {
+        sendMessage(messageBody, workerQueueUrls.get(analysisType));
     }
 
     public void uploadToS3(String key, String filePath) {
@@ -164,6 +287,34 @@ public class AWS {
                 ResponseTransformer.toFile(Paths.get(filePath)));
     }
 
+    // HEAD only - no body is transferred
+    public boolean existsInS3(String key) {
+        try {
+            s3.headObject(HeadObjectRequest.builder().bucket(S3_BUCKET_NAME).key(key).build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
+    // Returned as stored - the caller checks response().contentEncoding() for compressed results
+    public ResponseBytes<GetObjectResponse> downloadBytesFromS3(String key) {
+        return s3.getObjectAsBytes(GetObjectRequest.builder().bucket(S3_BUCKET_NAME).key(key).build());
+    }
+
+    // Workers report results as public object URLs: https://<bucket>.s3.amazonaws.com/<url-encoded key>
+    public String keyFromPublicUrl(String publicUrl) {
+        String prefix = "https://" + S3_BUCKET_NAME + ".s3.amazonaws.com/";
+        if (!publicUrl.startsWith(prefix)) {
+            throw new IllegalArgumentException("Not an object URL of bucket " + S3_BUCKET_NAME + ": " + publicUrl);
+        }
+        try {
+            return URLDecoder.decode(publicUrl.substring(prefix.length()), StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public void terminateInstance() {
         TerminateInstancesRequest terminateRequest = TerminateInstancesRequest.builder()
                 .instanceIds(INSTANCE_ID)
@@ -171,14 +322,15 @@ public class AWS {
         ec2.terminateInstances(terminateRequest);
     }
 
-    // Delete all objects in the bucket except the "processed/" folder
+    // Delete all objects in the bucket except the "processed/" and "profiles/" folders
     public void deleteBucket() {
         ListObjectsV2Request listObjectsV2Request = ListObjectsV2Request.builder().bucket(S3_BUCKET_NAME).build();
         ListObjectsV2Response listObjectsV2Response;
         do {
             listObjectsV2Response = s3.listObjectsV2(listObjectsV2Request);
             for (S3Object s3Object : listObjectsV2Response.contents()) {
-                if (!s3Object.key().startsWith("processed/")) {
+                // Results and worker profiles stay available after termination
+                if (!s3Object.key().startsWith("processed/") && !s3Object.key().startsWith("profiles/")) {
                     s3.deleteObject(DeleteObjectRequest.builder().bucket(S3_BUCKET_NAME).key(s3Object.key()).build());
                 }
             }
@@ -186,15 +338,38 @@ public class AWS {
         } while (listObjectsV2Response.isTruncated());
     }
 
-    public void deleteQueues() {
-        DeleteQueueRequest deleteQueueRequest1 = DeleteQueueRequest.builder().queueUrl(APP_TO_MANAGER_QUEUE_URL).build();
-        DeleteQueueRequest deleteQueueRequest2 = DeleteQueueRequest.builder().queueUrl(MANAGER_TO_APP_QUEUE_URL).build();
-        DeleteQueueRequest deleteQueueRequest3 = DeleteQueueRequest.builder().queueUrl(WORKER_TO_MANAGER_QUEUE_URL).build();
-        DeleteQueueRequest deleteQueueRequest4 = DeleteQueueRequest.builder().queueUrl(MANAGER_TO_WORKER_QUEUE_URL).build();
+    // The intake and result queues of this shard
+    public void deleteShardQueues() {
+        sqs.deleteQueue(DeleteQueueRequest.builder().queueUrl(APP_TO_MANAGER_QUEUE_URL).build());
+        sqs.deleteQueue(DeleteQueueRequest.builder().queueUrl(WORKER_TO_MANAGER_QUEUE_URL).build());
+    }
+
+    // The queues all shards share - deleted by the last shard
+    public void deleteSharedQueues() {
+        DeleteQueueRequest deleteQueueRequest1 = DeleteQueueRequest.builder().queueUrl(MANAGER_TO_APP_QUEUE_URL).build();
+        DeleteQueueRequest deleteQueueRequest2 = DeleteQueueRequest.builder().queueUrl(HEARTBEAT_QUEUE_URL).build();
         sqs.deleteQueue(deleteQueueRequest1);
         sqs.deleteQueue(deleteQueueRequest2);
-        sqs.deleteQueue(deleteQueueRequest3);
-        sqs.deleteQueue(deleteQueueRequest4);
+        for (String workerQueueUrl : workerQueueUrls.values()) {
+            sqs.deleteQueue(DeleteQueueRequest.builder().queueUrl(workerQueueUrl).build());
+        }
+    }
+
+    // Manager instances of the other shards that are still up
+    public int countOtherManagers() {
+        DescribeInstancesRequest request = DescribeInstancesRequest.builder()
+                .filters(Filter.builder().name("instance-state-name").values("running", "pending").build(),
+                        Filter.builder().name("tag:Name").values(MANAGER_TAG).build())
+                .build();
+        int count = 0;
+        for (Reservation reservation : ec2.describeInstances(request).reservations()) {
+            for (Instance ec2instance : reservation.instances()) {
+                if (!ec2instance.instanceId().equals(INSTANCE_ID)) {
+                    count++;
+                }
+            }
+        }
+        return count;
     }
 
     public String createQueue(String queueName) {
@@ -204,20 +379,43 @@ public class AWS {
         return sqs.createQueue(createQueueRequest).queueUrl();
     }
 
-    public void createWorkerQueues() {
-        WORKER_TO_MANAGER_QUEUE_URL = createQueue(WORKER_TO_MANAGER_TAG);
-        MANAGER_TO_WORKER_QUEUE_URL = createQueue(MANAGER_TO_WORKER_TAG);
-        
-        Tag workerToManagerTag = Tag.builder().key(WORKER_TO_MANAGER_TAG).value(WORKER_TO_MANAGER_QUEUE_URL).build();
-        Tag managerToWorkerTag = Tag.builder().key(MANAGER_TO_WORKER_TAG).value(MANAGER_TO_WORKER_QUEUE_URL).build();
+    // Creates the result queue of every shard (workers answer each task to its shard's queue) and
+    // the queues all shards share. Queue creation is idempotent, so every shard can run this.
+    public void createWorkerQueues(List<String> analysisTypes, int shards) {
+        for (int i = 0; i < shards; i++) {
+            workerToManagerQueueUrls.add(createQueue(WORKER_TO_MANAGER_TAG + "-" + i));
+        }
+        WORKER_TO_MANAGER_QUEUE_URL = workerToManagerQueueUrls.get(SHARD);
+        for (String analysisType : analysisTypes) {
+            workerQueueUrls.put(analysisType, createQueue(MANAGER_TO_WORKER_TAG + "-" + analysisType));
+        }
+        // Workers park tasks that keep failing here. It outlives the manager (deleteQueues keeps it)
+        // so repeat offenders can still be inspected after termination.
+        DEAD_LETTER_QUEUE_URL = sqs.createQueue(CreateQueueRequest.builder()
+                .queueName(DEAD_LETTER_TAG)
+                .attributes(Collections.singletonMap(QueueAttributeName.MESSAGE_RETENTION_PERIOD, "1209600"))
+                .build()).queueUrl();
+        HEARTBEAT_QUEUE_URL = createQueue(HEARTBEAT_TAG);
         
         CreateTagsRequest createTagsRequest = CreateTagsRequest.builder()
                 .resources(INSTANCE_ID)
-                .tags(workerToManagerTag, managerToWorkerTag)
+                .tags(workerQueueTags())
                 .build();
         ec2.createTags(createTagsRequest);
     }
 
+    // The result queue of every shard and the work queue of every analysis type
+    private List<Tag> workerQueueTags() {
+        List<Tag> tags = new ArrayList<>();
+        for (int i = 0; i < workerToManagerQueueUrls.size(); i++) {
+            tags.add(Tag.builder().key(WORKER_TO_MANAGER_TAG + "-" + i).value(workerToManagerQueueUrls.get(i)).build());
+        }
+        for (Map.Entry<String, String> workerQueue : workerQueueUrls.entrySet()) {
+            tags.add(Tag.builder().key(MANAGER_TO_WORKER_TAG + "-" + workerQueue.getKey()).value(workerQueue.getValue()).build());
+        }
+        return tags;
+    }
+
     public List<Message> receiveMessagesFromWorkersToManager() {
         return receiveMessages(WORKER_TO_MANAGER_QUEUE_URL);
     }
@@ -226,29 +424,58 @@ public class AWS {
         deleteMessage(message, WORKER_TO_MANAGER_QUEUE_URL);
     }
 
-    public int countWorkers() {
-        DescribeInstancesRequest request = DescribeInstancesRequest.builder()
-                .filters(Filter.builder().name("instance-state-name").values("running", "pending").build(),
-                        Filter.builder().name("tag:Name").values(WORKER_TAG).build())
-                .build();
-        DescribeInstancesResponse response = ec2.describeInstances(request);
-        int count = 0;
-        for (Reservation reservation : response.reservations()) {
-            count += reservation.instances().size();
-        }
-        return count;
+    public List<Message> receiveHeartbeats() {
+        return sqs.receiveMessage(ReceiveMessageRequest.builder()
+                .queueUrl(HEARTBEAT_QUEUE_URL)
+                .maxNumberOfMessages(10)
+                .waitTimeSeconds(20)
+                .build()).messages();
     }
 
-    public void createWorkers(int count) {
-        if (count <= 0) return;
+    public void deleteHeartbeat(Message message) {
+        deleteMessage(message, HEARTBEAT_QUEUE_URL);
+    }
 
+    // Returns the instance ids of the new workers.
+    // With buildStartup the workers build the uncompressed PCFG model snapshot and the AppCDS class
+    // archive (WorkerWarmup) and share them through the bucket - WorkerPool asks one worker to. The
+    // others download them if they are there yet and otherwise start without them. Both are tied to
+    // this jar and JDK build, so they live next to the jar of this deployment.
+    public List<String> createWorkers(int count, List<String> workerArgs, boolean buildStartup) {
+        List<String> instanceIds = new ArrayList<>();
+        if (count <= 0) return instanceIds;
+
+        String workerCommand = "cd /home/ec2-user && exec java -XX:SharedArchiveFile=worker.jsa -Xshare:auto -jar Worker-1.0-SNAPSHOT.jar";
+        for (String arg : workerArgs) {
+            workerCommand += " " + shellQuote(arg);
+        }
+        workerCommand += " > /dev/console 2>&1";
+        String startup = "s3://" + S3_BUCKET_NAME + "/startup/";
         String script = "#!/bin/bash\n" +
                         "yum update -y\n" +
                         "yum install java-17-amazon-corretto -y\n" +
                         "cd /home/ec2-user\n" +
                         "echo \"Downloading Worker JAR\"\n" +
                         "aws s3 cp s3://" + S3_BUCKET_NAME + "/Worker-1.0-SNAPSHOT.jar .\n" +
-                        "java -jar Worker-1.0-SNAPSHOT.jar > /dev/console 2>&1";
+                        (buildStartup
+                                ? "echo \"Building startup snapshot\"\n" +
+                                  "java -XX:ArchiveClassesAtExit=worker.jsa -cp Worker-1.0-SNAPSHOT.jar WorkerWarmup englishPCFG.ser > /dev/console 2>&1\n" +
+                                  // The archive goes last - its presence means both files are there
+                                  "aws s3 cp englishPCFG.ser " + startup + "englishPCFG.ser && aws s3 cp worker.jsa " + startup + "worker.jsa\n"
+                                : "aws s3 cp " + startup + "worker.jsa . && aws s3 cp " + startup + "englishPCFG.ser . " +
+                                  "|| rm -f worker.jsa englishPCFG.ser\n") +
+                        // Run as a service so an instance shutdown (termination, scale-in, spot) sends the
+                        // worker SIGTERM and waits for it to drain while the network is still up
+                        "systemd-run --unit=worker -p TimeoutStopSec=" + WORKER_STOP_TIMEOUT_SECONDS + " -p After=network-online.target " +
+                        "/bin/sh -c " + shellQuote(workerCommand);
+
+        // One list - every tags(...) call on the builder replaces the tags set before
+        List<Tag> tags = new ArrayList<>();
+        tags.add(Tag.builder().key("Name").value(WORKER_TAG).build());
+        tags.add(Tag.builder().key(DEAD_LETTER_TAG).value(DEAD_LETTER_QUEUE_URL).build());
+        tags.add(Tag.builder().key(HEARTBEAT_TAG).value(HEARTBEAT_QUEUE_URL).build());
+        tags.add(Tag.builder().key(S3_BUCKET_TAG).value(S3_BUCKET_NAME).build());
+        tags.addAll(workerQueueTags());
 
         RunInstancesRequest runRequest = RunInstancesRequest.builder()
                 .imageId(WORKER_AMI_ID)
@@ -260,12 +487,7 @@ public class AWS {
                 .tagSpecifications(
                         TagSpecification.builder()
                                 .resourceType(ResourceType.INSTANCE)
-                                .tags(
-                                        Tag.builder().key("Name").value(WORKER_TAG).build(),
-                                        Tag.builder().key(WORKER_TO_MANAGER_TAG).value(WORKER_TO_MANAGER_QUEUE_URL).build(),
-                                        Tag.builder().key(MANAGER_TO_WORKER_TAG).value(MANAGER_TO_WORKER_QUEUE_URL).build(),
-                                        Tag.builder().key(S3_BUCKET_TAG).value(S3_BUCKET_NAME).build()
-                                )
+                                .tags(tags)
                                 .build())
                 .iamInstanceProfile(
                         IamInstanceProfileSpecification.builder()
@@ -273,8 +495,32 @@ public class AWS {
                                 .build())
                 .build();
 
-        ec2.runInstances(runRequest);
-        System.out.println("Started " + count + " worker instances.");
+        for (Instance instance : ec2.runInstances(runRequest).instances()) {
+            instanceIds.add(instance.instanceId());
+        }
+        System.out.println("Started " + count + " worker instances" + (buildStartup ? " building the startup snapshot" : "") + ": " + instanceIds);
+        return instanceIds;
+    }
+
+    // Single-quoted for sh, so an argument is passed on as one word whatever it contains
+    private static String shellQuote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    public void terminateWorkers(List<String> instanceIds) {
+        // One malformed id (e.g. from a heartbeat that isn't a worker's) fails the whole request
+        List<String> valid = new ArrayList<>();
+        for (String instanceId : instanceIds) {
+            if (instanceId.startsWith("i-")) {
+                valid.add(instanceId);
+            } else {
+                System.err.println("Not terminating " + instanceId + ": not an instance id");
+            }
+        }
+        if (valid.isEmpty()) return;
+
+        ec2.terminateInstances(TerminateInstancesRequest.builder().instanceIds(valid).build());
+        System.out.println("Terminated worker instances: " + valid);
     }
 
     public void terminateAllWorkers() {
@@ -0,0 +1,63 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Corpus statistics of one job with the "stats" option: the label counts workers send with
+// each result ("stats=<label>:<count>,..." with URL encoded labels), summed per analysis type -
+// POS tags, phrasal constituent labels and dependency relations - without reading the results again.
+class CorpusStats {
+
+    // analysis type -> label -> count
+    private final Map<String, Map<String, Long>> counts = new TreeMap<>();
+    private final Map<String, Integer> files = new HashMap<>();
+
+    synchronized void merge(String type, String statsToken) {
+        Map<String, Long> typeCounts = counts.computeIfAbsent(type, key -> new HashMap<>());
+        for (String entry : statsToken.substring("stats=".length()).split(",")) {
+            int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                String label = URLDecoder.decode(entry.substring(0, separator), StandardCharsets.UTF_8.name());
+                typeCounts.merge(label, Long.parseLong(entry.substring(separator + 1)), Long::sum);
+            } catch (UnsupportedEncodingException | RuntimeException e) {
+                System.err.println("Ignoring invalid label count: " + entry);
+            }
+        }
+        files.merge(type, 1, Integer::sum);
+    }
+
+    // Every type's labels from the most frequent down, with their share of the type's total
+    synchronized void write(File file, String appId) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("Corpus statistics for job " + appId);
+            writer.newLine();
+            for (Map.Entry<String, Map<String, Long>> type : counts.entrySet()) {
+                long total = 0;
+                for (long count : type.getValue().values()) {
+                    total += count;
+                }
+                List<Map.Entry<String, Long>> labels = new ArrayList<>(type.getValue().entrySet());
+                labels.sort((a, b) -> !a.getValue().equals(b.getValue()) ? Long.compare(b.getValue(), a.getValue()) : a.getKey().compareTo(b.getKey()));
+
+                writer.newLine();
+                writer.write(type.getKey() + ": " + total + " labels in " + files.get(type.getKey()) + " files");
+                writer.newLine();
+                for (Map.Entry<String, Long> label : labels) {
+                    writer.write(String.format("  %-16s %10d %6.2f%%", label.getKey(), label.getValue(), label.getValue() * 100.0 / total));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+}
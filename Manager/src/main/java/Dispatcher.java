@@ -0,0 +1,376 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Sends the worker messages of all jobs earliest-deadline-first. SQS has no priorities, so the
+// messages are held here and each type's queue is only topped up to READY_MESSAGES visible
+// messages (or as many as are being processed, if more) - enough for every worker to find one
+// at once, while the order of everything behind them can still change when a more urgent job
+// arrives. Jobs without a deadline come after all jobs with one, in arrival order.
+// A job counts as dispatched (journaled, traced) when its last message has been sent. The held
+// message bodies wait in a file per job (dispatch/<appId>.held), so a large backlog isn't kept on
+// the heap.
+//
+// Completion times are predicted from the task time of each type (an average over the results
+// so far) and the workers serving it: a job finishes when the tasks of its own and the more
+// urgent jobs are done. A job whose deadline is at risk scales the fleet up to MAX_WORKERS.
+class Dispatcher implements Runnable {
+
+    private static final AWS aws = AWS.getInstance();
+    private static final int READY_MESSAGES = WorkerPool.MAX_WORKERS;
+    private static final long TOP_UP_INTERVAL_MILLIS = 1000;
+    private static final long RISK_CHECK_INTERVAL_MILLIS = 30_000;
+    // Until a type has results of its own
+    private static final double DEFAULT_TASK_SECONDS = 30;
+    // Weight of the latest task in the average task time
+    private static final double TASK_TIME_WEIGHT = 0.2;
+
+    private static final Map<String, PriorityQueue<Held>> held = new HashMap<>();
+    private static final Map<String, Job> jobs = new LinkedHashMap<>();
+    // Average seconds per task of each analysis type
+    private static final Map<String, Double> taskSeconds = new ConcurrentHashMap<>();
+    // Messages of each type being processed at the last top-up - a lower bound on its busy workers
+    private static final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+    private static long sequence = 0;
+    private static long lastRiskCheck = 0;
+
+    private static class Job {
+        final String appId;
+        final long deadline;
+        final long order;
+        final JobTrace trace;
+        final File heldPath;
+        // The held message bodies, null if they couldn't be written and are kept in memory
+        FileChannel heldFile;
+        // Unanswered tasks per analysis type
+        final Map<String, Integer> remainingTasks;
+        int unsentMessages;
+        long predicted;
+        boolean atRisk = false;
+
+        Job(String appId, long deadline, long order, JobTrace trace, Map<String, Integer> remainingTasks, int unsentMessages) {
+            this.appId = appId;
+            this.deadline = deadline;
+            this.order = order;
+            this.trace = trace;
+            this.heldPath = new File("dispatch/" + appId + ".held");
+            this.remainingTasks = remainingTasks;
+            this.unsentMessages = unsentMessages;
+        }
+
+        boolean before(Job other) {
+            return deadline != other.deadline ? deadline < other.deadline : order < other.order;
+        }
+    }
+
+    private static class Held {
+        final Job job;
+        // Where the body is in the job's held file, or the body itself if the file couldn't be written
+        final long offset;
+        final int length;
+        final String body;
+
+        Held(Job job, long offset, int length, String body) {
+            this.job = job;
+            this.offset = offset;
+            this.length = length;
+            this.body = body;
+        }
+    }
+
+    // Queues a job's worker messages (by analysis type) for dispatch. taskCounts are the job's
+    // tasks per analysis type, deadline is epoch millis or Long.MAX_VALUE for none.
+    static void submit(String appId, long deadline, Map<String, List<String>> messages, Map<String, Integer> taskCounts, JobTrace trace) {
+        Job job;
+        synchronized (Dispatcher.class) {
+            int messageCount = 0;
+            for (List<String> typeMessages : messages.values()) {
+                messageCount += typeMessages.size();
+            }
+            job = new Job(appId, deadline, sequence++, trace, new HashMap<>(taskCounts), messageCount);
+            jobs.put(appId, job);
+        }
+        Map<String, List<Held>> heldMessages = hold(job, messages);
+        synchronized (Dispatcher.class) {
+            for (Map.Entry<String, List<Held>> typeMessages : heldMessages.entrySet()) {
+                PriorityQueue<Held> queue = held.computeIfAbsent(typeMessages.getKey(), type -> new PriorityQueue<>(
+                        Comparator.comparingLong((Held message) -> message.job.deadline).thenComparingLong(message -> message.job.order)));
+                queue.addAll(typeMessages.getValue());
+            }
+            job.predicted = predict(job, System.currentTimeMillis());
+            if (trace != null) {
+                trace.scheduled(job.predicted, deadline);
+            }
+        }
+        System.out.println("Job " + appId + " predicted to finish in " + (job.predicted - System.currentTimeMillis()) / 1000 + "s"
+                + (deadline != Long.MAX_VALUE ? ", deadline in " + (deadline - System.currentTimeMillis()) / 1000 + "s" : ""));
+        if (messages.isEmpty()) {
+            dispatched(job);
+        }
+        topUp();
+        checkDeadlines();
+    }
+
+    // Writes the job's message bodies to its held file; they stay in memory if that fails
+    private static Map<String, List<Held>> hold(Job job, Map<String, List<String>> messages) {
+        Map<String, List<Held>> heldMessages = new LinkedHashMap<>();
+        try {
+            job.heldPath.getParentFile().mkdirs();
+            job.heldFile = FileChannel.open(job.heldPath.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long offset = 0;
+            for (Map.Entry<String, List<String>> typeMessages : messages.entrySet()) {
+                List<Held> typeHeld = new ArrayList<>();
+                for (String body : typeMessages.getValue()) {
+                    ByteBuffer bytes = ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+                    typeHeld.add(new Held(job, offset, bytes.remaining(), null));
+                    while (bytes.hasRemaining()) {
+                        offset += job.heldFile.write(bytes);
+                    }
+                }
+                heldMessages.put(typeMessages.getKey(), typeHeld);
+            }
+            return heldMessages;
+        } catch (IOException e) {
+            System.err.println("Failed to write the held messages of appId " + job.appId + ", keeping them in memory: " + e.getMessage());
+            release(job);
+            heldMessages.clear();
+            for (Map.Entry<String, List<String>> typeMessages : messages.entrySet()) {
+                List<Held> typeHeld = new ArrayList<>();
+                for (String body : typeMessages.getValue()) {
+                    typeHeld.add(new Held(job, 0, 0, body));
+                }
+                heldMessages.put(typeMessages.getKey(), typeHeld);
+            }
+            return heldMessages;
+        }
+    }
+
+    private static String body(Held message) {
+        if (message.body != null) {
+            return message.body;
+        }
+        try {
+            // Positional reads - top-ups run on the dispatcher and the input handler thread
+            ByteBuffer bytes = ByteBuffer.allocate(message.length);
+            while (bytes.hasRemaining()) {
+                if (message.job.heldFile.read(bytes, message.offset + bytes.position()) < 0) {
+                    throw new EOFException("Held message of appId " + message.job.appId + " cut short");
+                }
+            }
+            return new String(bytes.array(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Closes and deletes the job's held file once nothing is read from it anymore
+    private static void release(Job job) {
+        try {
+            if (job.heldFile != null) {
+                job.heldFile.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to close the held messages of appId " + job.appId + ": " + e.getMessage());
+        }
+        job.heldFile = null;
+        job.heldPath.delete();
+    }
+
+    // Counts down a job's remaining work and learns the task time of its type from the
+    // worker's hops (receive to upload) in the result's trace token, if it has one
+    static synchronized void taskAnswered(String appId, String type, boolean failed, String traceToken) {
+        Job job = jobs.get(appId);
+        if (job != null) {
+            job.remainingTasks.computeIfPresent(type, (key, count) -> count - 1);
+        }
+        if (failed || traceToken == null) {
+            return;
+        }
+        Long receive = null;
+        Long upload = null;
+        for (String hop : traceToken.split(",")) {
+            try {
+                if (hop.startsWith("receive=")) {
+                    receive = Long.parseLong(hop.substring("receive=".length()));
+                } else if (hop.startsWith("upload=")) {
+                    upload = Long.parseLong(hop.substring("upload=".length()));
+                }
+            } catch (NumberFormatException e) {
+                return;
+            }
+        }
+        if (receive != null && upload != null && upload >= receive) {
+            double seconds = (upload - receive) / 1000.0;
+            taskSeconds.merge(type, seconds, (average, latest) -> average + TASK_TIME_WEIGHT * (latest - average));
+        }
+    }
+
+    // Reports the prediction made when the job was accepted against its actual completion
+    static void jobFinished(String appId) {
+        Job job;
+        synchronized (Dispatcher.class) {
+            job = jobs.remove(appId);
+        }
+        if (job == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Metrics.observe("manager_prediction_error_seconds", Math.abs(now - job.predicted) / 1000.0);
+        String report = "Job " + appId + " finished " + Math.abs(now - job.predicted) / 1000 + "s "
+                + (now > job.predicted ? "later" : "earlier") + " than predicted";
+        if (job.deadline != Long.MAX_VALUE) {
+            boolean met = now <= job.deadline;
+            Metrics.increment("manager_deadline_jobs_total", "outcome", met ? "met" : "missed");
+            report += ", " + (met ? "met" : "missed") + " its deadline by " + Math.abs(job.deadline - now) / 1000 + "s";
+        }
+        System.out.println(report);
+    }
+
+    static double getTaskSeconds(String type) {
+        return taskSeconds.getOrDefault(type, DEFAULT_TASK_SECONDS);
+    }
+
+    static synchronized int heldMessages(String type) {
+        PriorityQueue<Held> queue = held.get(type);
+        return queue == null ? 0 : queue.size();
+    }
+
+    // Sends the most urgent held messages of each type until its queue has enough ready for the workers
+    private static void topUp() {
+        for (String type : Manager.ANALYSIS_TYPES) {
+            if (heldMessages(type) == 0) {
+                continue;
+            }
+            int[] depth = aws.getWorkerQueueDepth(type);
+            inFlight.put(type, depth[1]);
+            List<Held> toSend = new ArrayList<>();
+            synchronized (Dispatcher.class) {
+                PriorityQueue<Held> queue = held.get(type);
+                for (int ready = depth[0]; ready < Math.max(READY_MESSAGES, depth[1]) && !queue.isEmpty(); ready++) {
+                    toSend.add(queue.poll());
+                }
+            }
+            for (int i = 0; i < toSend.size(); i++) {
+                Held message = toSend.get(i);
+                try {
+                    aws.sendMessageToWorkers(type, stampDispatch(body(message)));
+                } catch (RuntimeException e) {
+                    // Hold the unsent messages again for the next top-up
+                    synchronized (Dispatcher.class) {
+                        held.get(type).addAll(toSend.subList(i, toSend.size()));
+                    }
+                    throw e;
+                }
+                boolean allSent;
+                synchronized (Dispatcher.class) {
+                    allSent = --message.job.unsentMessages == 0;
+                }
+                if (allSent) {
+                    dispatched(message.job);
+                }
+            }
+        }
+    }
+
+    // Adds the send time to the trace of every traced task of the message, so time a message was
+    // held here isn't counted as queue time
+    private static String stampDispatch(String body) {
+        String[] lines = body.split("\n");
+        String dispatch = ",dispatch=" + System.currentTimeMillis();
+        for (int i = 0; i < lines.length; i++) {
+            String[] parts = lines[i].split(" ");
+            if (parts.length > 3 && parts[3].contains("trace=")) {
+                lines[i] += dispatch;
+            }
+        }
+        return String.join("\n", lines);
+    }
+
+    private static void dispatched(Job job) {
+        release(job);
+        Journal.dispatched(job.appId);
+        if (job.trace != null) {
+            job.trace.dispatched(System.currentTimeMillis());
+        }
+    }
+
+    // Scales the fleet up to the maximum for the types of any job predicted to miss its deadline
+    private static void checkDeadlines() {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> messageCounts = new LinkedHashMap<>();
+        synchronized (Dispatcher.class) {
+            lastRiskCheck = now;
+            for (Job job : jobs.values()) {
+                if (job.deadline == Long.MAX_VALUE) {
+                    continue;
+                }
+                boolean atRisk = predict(job, now) > job.deadline;
+                if (atRisk && !job.atRisk) {
+                    System.out.println("Job " + job.appId + " is at risk of missing its deadline, scaling up");
+                    Metrics.increment("manager_deadline_escalations_total");
+                }
+                job.atRisk = atRisk;
+                if (atRisk) {
+                    for (Map.Entry<String, Integer> typeTasks : job.remainingTasks.entrySet()) {
+                        if (typeTasks.getValue() > 0) {
+                            // Enough messages for MAX_WORKERS workers at n messages each
+                            messageCounts.put(typeTasks.getKey(), Manager.getN() * WorkerPool.MAX_WORKERS);
+                        }
+                    }
+                }
+            }
+        }
+        if (!messageCounts.isEmpty()) {
+            WorkerPool.scaleUp(messageCounts);
+        }
+    }
+
+    // Epoch millis at which the job's remaining tasks and those of the more urgent jobs are done,
+    // each type worked off by its workers in parallel
+    private static long predict(Job job, long now) {
+        long finish = now;
+        for (String type : job.remainingTasks.keySet()) {
+            int tasksAhead = 0;
+            for (Job other : jobs.values()) {
+                if (other == job || other.before(job)) {
+                    tasksAhead += Math.max(0, other.remainingTasks.getOrDefault(type, 0));
+                }
+            }
+            int workers = Math.max(1, Math.max(WorkerRegistry.capacity(type), inFlight.getOrDefault(type, 0)));
+            finish = Math.max(finish, now + (long) (tasksAhead * getTaskSeconds(type) * 1000 / workers));
+        }
+        return finish;
+    }
+
+    @Override
+    public void run() {
+        while (!Manager.isTerminated() || Manager.hasPendingTasks()) {
+            try {
+                Thread.sleep(TOP_UP_INTERVAL_MILLIS);
+                topUp();
+                if (System.currentTimeMillis() - lastRiskCheck >= RISK_CHECK_INTERVAL_MILLIS) {
+                    checkDeadlines();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // Held messages stay queued - sent on the next top-up
+                System.err.println("Dispatch failed: " + e.getMessage());
+            }
+        }
+    }
+}
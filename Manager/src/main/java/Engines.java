@@ -0,0 +1,65 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The analysis engines the workers offer (see AnalysisEngines in the Worker): the types each
+// engine can run, the models each engine loads, and the deployment's default engine per type.
+class Engines {
+
+    private static final Map<String, List<String>> SUPPORTED = new HashMap<>();
+    static {
+        SUPPORTED.put("POS", Arrays.asList("pcfg", "tagger"));
+        SUPPORTED.put("CONSTITUENCY", Arrays.asList("pcfg", "sr"));
+        SUPPORTED.put("DEPENDENCY", Arrays.asList("pcfg", "sr", "nndep"));
+    }
+
+    // Workers load a model on first use, so this is what a worker running the engine holds
+    private static final Map<String, List<String>> MODELS = new HashMap<>();
+    static {
+        MODELS.put("pcfg", Arrays.asList("pcfg"));
+        MODELS.put("tagger", Arrays.asList("tagger"));
+        MODELS.put("sr", Arrays.asList("tagger", "sr"));
+        MODELS.put("nndep", Arrays.asList("tagger", "nndep"));
+    }
+
+    private static final Map<String, String> defaults = new HashMap<>();
+
+    static boolean isSupported(String type, String engine) {
+        return SUPPORTED.containsKey(type) && SUPPORTED.get(type).contains(engine);
+    }
+
+    // "<ANALYSIS_TYPE>=<engine>" deployment argument
+    static boolean isDefaultArg(String arg) {
+        int separator = arg.indexOf('=');
+        return separator > 0 && SUPPORTED.containsKey(arg.substring(0, separator));
+    }
+
+    // Records a deployment default; false if the type can't run on the engine
+    static boolean setDefault(String arg) {
+        int separator = arg.indexOf('=');
+        String type = arg.substring(0, separator);
+        String engine = arg.substring(separator + 1);
+        if (!isSupported(type, engine)) {
+            return false;
+        }
+        defaults.put(type, engine);
+        return true;
+    }
+
+    static String defaultEngine(String type) {
+        return defaults.getOrDefault(type, "pcfg");
+    }
+
+    // Whether a worker specialized to the type loads fewer models than a general worker, i.e. the
+    // type's default engine doesn't need every model the defaults of all types need together
+    static boolean specializationSaves(String type) {
+        Set<String> allModels = new HashSet<>();
+        for (String anyType : SUPPORTED.keySet()) {
+            allModels.addAll(MODELS.get(defaultEngine(anyType)));
+        }
+        return !MODELS.get(defaultEngine(type)).containsAll(allModels);
+    }
+}
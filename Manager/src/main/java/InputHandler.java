@@ -8,12 +8,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 class InputHandler implements Runnable { 
 
     private static final AWS aws = AWS.getInstance();
-    private static final int MAX_WORKERS = 8;
 
     @Override
     public void run() {
@@ -24,6 +25,8 @@ class InputHandler implements Runnable {
                 String body = message.body();
                 if (body.startsWith("new task:")) {
                     handleNewTask(message);
+                } else if (body.startsWith("scale ")) {
+                    handleScaleRequest(body);
                 } else if (body.equals("terminate")) {
                     Manager.terminate();
                     handleTermination();
@@ -34,9 +37,18 @@ class InputHandler implements Runnable {
     }
 
     private static void handleNewTask(Message message) {
+        long start = System.nanoTime();
         String[] parts = message.body().split(":");
         String s3Key = parts[1];
         String appId = parts[2];
+        if (Journal.hasJob(appId)) {
+            // Redelivered after a restart - the job was recovered from the journal
+            System.out.println("Job " + appId + " already accepted, ignoring the duplicate request");
+            return;
+        }
+        JobTrace trace = new JobTrace(appId, AWS.sentTimestamp(message), System.currentTimeMillis());
+        JobOptions options = new JobOptions(parts.length > 3 ? parts[3] : null);
+        options.anchorDeadline(AWS.sentTimestamp(message));
         String inputFilePath = "inputs/" + appId + "/input.txt";
         String outputFilePath = "outputs/" + appId + "/output.html";
 
@@ -51,29 +63,83 @@ class InputHandler implements Runnable {
             System.out.println("Malformed lines found in input file for appId " + appId);
             createMalformedLinesHtml(outputFilePath, malformedLines);
             aws.uploadToS3("outputs/" + appId + "/output.html", outputFilePath);
-            aws.sendMessageToLocalApplication("done:outputs/" + appId + "/output.html:" + appId);
+            aws.sendMessageToLocalApplication(appId, "done:outputs/" + appId + "/output.html:" + appId);
+            aws.forgetReplyQueue(appId);
         }
         else {
             // Process the valid input file and generate output HTML
-            System.out.println("Processing valid input file for appId " + appId);
-            List<String> messagesForWorkers = createSQSMessagesForWorkers(inputFilePath, appId);
-            Manager.addNewTask(appId, messagesForWorkers.size());
-            for (String workerMessage : messagesForWorkers) {
-                aws.sendMessageToWorkers(workerMessage);
+            System.out.println("Processing valid input file for appId " + appId + (options.toString().isEmpty() ? "" : " with options " + options));
+            List<String> tasks = createSQSMessagesForWorkers(inputFilePath, appId, options);
+            Journal.jobAccepted(appId, tasks.size(), options.toString(), s3Key);
+            Manager.addNewTask(appId, tasks.size(), options, trace);
+            Map<String, Integer> messageCounts = sendToWorkers(tasks, appId, options, trace);
+            if (aws.hasReplyQueue(appId)) {
+                aws.sendMessageToLocalApplication(appId, "progress 0/" + tasks.size() + " " + appId);
+            }
+            WorkerPool.scaleUp(messageCounts);
+            Metrics.increment("manager_jobs_total");
+            Metrics.add("manager_tasks_dispatched_total", tasks.size());
+            Metrics.observe("manager_stage_seconds", (System.nanoTime() - start) / 1e9, "stage", "dispatch");
+        }
+    }
+
+    // Sends the tasks of a recovered job that hadn't been fully dispatched before the crash,
+    // except the ones already answered. Tasks that did go out may run twice - the duplicate
+    // results are dropped by the journal.
+    static void redispatch(Journal.JobRecord job, JobOptions options) {
+        String inputFilePath = "inputs/" + job.appId + "/input.txt";
+        new File(inputFilePath).getParentFile().mkdirs();
+        new File(inputFilePath).delete();
+        aws.downloadFromS3(job.s3Key, inputFilePath);
+
+        List<String> tasks = createSQSMessagesForWorkers(inputFilePath, job.appId, options);
+        List<String> unanswered = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            if (!job.hasResult(i)) {
+                unanswered.add(tasks.get(i));
             }
-            createWorkers(messagesForWorkers.size());
         }
+        WorkerPool.scaleUp(sendToWorkers(unanswered, job.appId, options, null));
     }
 
-    private static void createWorkers(int messagesCount) {
-        int n = Manager.getN();
-        int workersNeeded = (messagesCount + n - 1) / n;
-        int currentWorkers = aws.countWorkers();
-        int workersToCreate = Math.max(0, workersNeeded - currentWorkers);
-        if (currentWorkers + workersToCreate > MAX_WORKERS) {
-            workersToCreate = MAX_WORKERS - currentWorkers;
+    // Tasks go to the queue of their analysis type, packed per type so a pack never needs more
+    // than one kind of worker, in deadline order through the Dispatcher. Returns the number of
+    // worker messages per analysis type.
+    private static Map<String, Integer> sendToWorkers(List<String> tasks, String appId, JobOptions options, JobTrace trace) {
+        Map<String, List<String>> tasksByType = new LinkedHashMap<>();
+        for (String task : tasks) {
+            tasksByType.computeIfAbsent(task.split(" ")[0], type -> new ArrayList<>()).add(task);
+        }
+        Map<String, List<String>> messagesByType = new LinkedHashMap<>();
+        Map<String, Integer> taskCounts = new LinkedHashMap<>();
+        Map<String, Integer> messageCounts = new LinkedHashMap<>();
+        int messagesCount = 0;
+        Map<String, Long> sizes = TaskPacker.probeSizes(tasks, appId);
+        for (Map.Entry<String, List<String>> typeTasks : tasksByType.entrySet()) {
+            List<String> messagesForWorkers = TaskPacker.pack(typeTasks.getValue(), appId, sizes);
+            messagesByType.put(typeTasks.getKey(), messagesForWorkers);
+            taskCounts.put(typeTasks.getKey(), typeTasks.getValue().size());
+            messageCounts.put(typeTasks.getKey(), messagesForWorkers.size());
+            messagesCount += messagesForWorkers.size();
         }
-        aws.createWorkers(workersToCreate);
+        System.out.println("Queued " + tasks.size() + " tasks in " + messagesCount + " worker messages for appId " + appId + " " + messageCounts);
+        Dispatcher.submit(appId, options.deadline(), messagesByType, taskCounts, trace);
+        return messageCounts;
+    }
+
+    // Scale-up of another shard's job: "scale <TYPE>=<messages>,..."
+    private static void handleScaleRequest(String body) {
+        Map<String, Integer> messageCounts = new LinkedHashMap<>();
+        for (String typeMessages : body.substring("scale ".length()).split(",")) {
+            String[] keyValue = typeMessages.split("=", 2);
+            try {
+                messageCounts.put(keyValue[0], Integer.parseInt(keyValue[1]));
+            } catch (RuntimeException e) {
+                System.err.println("Invalid scale request: " + body);
+                return;
+            }
+        }
+        WorkerPool.scaleUp(messageCounts);
     }
 
     private static void handleTermination() {
@@ -90,7 +156,8 @@ class InputHandler implements Runnable {
             for (Message message : remainingMessages) {
                 if (message.body().startsWith("new task:")) {
                     String appId = message.body().split(":")[2];
-                    aws.sendMessageToLocalApplication("done:" + terminationS3Key + ":" + appId);
+                    aws.sendMessageToLocalApplication(appId, "done:" + terminationS3Key + ":" + appId);
+                    aws.forgetReplyQueue(appId);
                 }
                 aws.deleteMessageFromLocalApplication(message);
             }
@@ -109,13 +176,15 @@ class InputHandler implements Runnable {
                     continue;
                 }
                 String[] parts = line.split("\t");
-                if (parts.length != 2) {
+                if (parts.length != 2 && parts.length != 3) {
                     malformedLines.add(line);
                     continue;
                 }
                 String type = parts[0];
                 String url = parts[1];
-                if (!type.equals("POS") && !type.equals("CONSTITUENCY") && !type.equals("DEPENDENCY")) {
+                if (!Manager.ANALYSIS_TYPES.contains(type)) {
+                    malformedLines.add(line);
+                } else if (parts.length == 3 && !Engines.isSupported(type, parts[2])) {
                     malformedLines.add(line);
                 } else {
                     try {
@@ -155,7 +224,7 @@ class InputHandler implements Runnable {
         }
     }
 
-    private static List<String> createSQSMessagesForWorkers(String inputFilePath, String appId) {
+    private static List<String> createSQSMessagesForWorkers(String inputFilePath, String appId, JobOptions options) {
         List<String> messages = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(inputFilePath))) {
             String line;
@@ -167,6 +236,20 @@ class InputHandler implements Runnable {
                 String type = parts[0];
                 String url = parts[1];
                 String message = type + " " + url + " " + appId;
+                List<String> taskOptions = new ArrayList<>();
+                if (parts.length == 3) {
+                    taskOptions.add("engine=" + parts[2]);
+                }
+                if (!options.forWorkers().isEmpty()) {
+                    taskOptions.add(options.forWorkers());
+                }
+                // Every task carries shard and trace, so the options field is always sent.
+                // The worker answers to this shard's result queue
+                taskOptions.add("shard=" + Manager.getShard());
+                // The worker echoes the trace back with its own hop timestamps added; the
+                // dispatch time is added by the Dispatcher when the message is actually sent
+                taskOptions.add("trace=" + messages.size());
+                message += " " + String.join(",", taskOptions);
                 messages.add(message);
             }
         } catch (IOException e) {
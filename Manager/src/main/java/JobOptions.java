@@ -0,0 +1,95 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Optional per-job settings sent by the client as the last field of "new task:<s3Key>:<appId>:<options>".
+// The options are a comma separated list of flags or key=value pairs, e.g. "archive".
+class JobOptions {
+
+    static final String ARCHIVE = "archive";
+    static final String COMPRESS = "compress";
+    // Workers count labels per file and the manager sums them into corpus statistics
+    static final String STATS = "stats";
+    // Workers index the sentences of their results and the manager merges them into one index per job
+    static final String INDEX = "index";
+    // Minutes from sending the job the client wants it done in. Clients and Manager don't share a
+    // clock, so the Manager anchors it to the SQS SentTimestamp of the job message and keeps the
+    // epoch millis as deadlineAt, which is journaled with the job and holds across a restart.
+    static final String DEADLINE = "deadline";
+    static final String DEADLINE_AT = "deadlineAt";
+
+    // Options the workers act on - these are forwarded in every task message of the job
+    private static final List<String> WORKER_OPTIONS = Arrays.asList(COMPRESS, STATS, INDEX);
+
+    private final Map<String, String> options = new LinkedHashMap<>();
+
+    JobOptions(String optionsField) {
+        if (optionsField == null) {
+            return;
+        }
+        for (String option : optionsField.split(",")) {
+            if (option.isEmpty()) {
+                continue;
+            }
+            String[] keyValue = option.split("=", 2);
+            options.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "true");
+        }
+    }
+
+    boolean has(String option) {
+        return options.containsKey(option);
+    }
+
+    String get(String option) {
+        return options.get(option);
+    }
+
+    // Turns the relative deadline of a new job into deadlineAt, sentMillis being when the client sent it
+    void anchorDeadline(long sentMillis) {
+        String minutes = options.remove(DEADLINE);
+        try {
+            if (minutes != null && Long.parseLong(minutes) > 0) {
+                options.put(DEADLINE_AT, String.valueOf(sentMillis + Long.parseLong(minutes) * 60_000));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring malformed deadline: " + minutes);
+        }
+    }
+
+    // The job's deadline in epoch millis, Long.MAX_VALUE if it has none
+    long deadline() {
+        try {
+            return has(DEADLINE_AT) ? Long.parseLong(get(DEADLINE_AT)) : Long.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // The worker options of this job in task message form, e.g. "compress" (empty if none)
+    String forWorkers() {
+        return format(true);
+    }
+
+    @Override
+    public String toString() {
+        return format(false);
+    }
+
+    private String format(boolean workerOptionsOnly) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (workerOptionsOnly && !WORKER_OPTIONS.contains(option.getKey())) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(option.getKey());
+            if (!option.getValue().equals("true")) {
+                sb.append("=").append(option.getValue());
+            }
+        }
+        return sb.toString();
+    }
+}
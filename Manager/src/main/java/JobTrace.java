@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hop timestamps (epoch millis) of one job and its tasks. Every worker task carries a
+// "trace=<n>,dispatch=<millis>" option (dispatch is stamped when the Dispatcher sends it) and the
+// worker answers with the same token extended by its own hops: ready (worker started polling),
+// receive (the worker took the task up - later than the message for tasks late in a pack),
+// download, parse and upload.
+// When the job is done, report() breaks the time down by stage and follows the critical path -
+// the task whose result arrived last, since the job can't finish before it.
+class JobTrace {
+
+    // Worker-side stages in pipeline order, each measured from the previous hop
+    private static final String[] TASK_STAGES = {"boot", "queue", "download", "parse", "upload", "report"};
+
+    private final String appId;
+    // The client sent the job (SQS SentTimestamp of the "new task" message)
+    private final long submitted;
+    // The manager picked the job up
+    private final long accepted;
+    private long dispatched;
+    // Completion predicted when the job was accepted and the client's deadline (0 if none)
+    private long predicted;
+    private long deadline;
+    private final List<TaskTrace> tasks = new ArrayList<>();
+
+    JobTrace(String appId, long submitted, long accepted) {
+        this.appId = appId;
+        this.submitted = submitted;
+        this.accepted = accepted;
+    }
+
+    synchronized void dispatched(long millis) {
+        dispatched = millis;
+    }
+
+    // deadline is Long.MAX_VALUE for a job without one
+    synchronized void scheduled(long predictedMillis, long deadlineMillis) {
+        predicted = predictedMillis;
+        deadline = deadlineMillis != Long.MAX_VALUE ? deadlineMillis : 0;
+    }
+
+    // traceToken is the comma separated key=value token a worker appended to its result line
+    synchronized void addResult(String type, String url, boolean failed, String traceToken, long aggregated) {
+        Map<String, Long> hops = new HashMap<>();
+        for (String hop : traceToken.split(",")) {
+            String[] keyValue = hop.split("=", 2);
+            if (keyValue.length == 2) {
+                try {
+                    hops.put(keyValue[0], Long.parseLong(keyValue[1]));
+                } catch (NumberFormatException e) {
+                    // Not a timestamp - ignore it
+                }
+            }
+        }
+        hops.put("aggregate", aggregated);
+        tasks.add(new TaskTrace(type, url, failed, hops));
+    }
+
+    synchronized String report(long done) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Timing report for job ").append(appId).append('\n');
+        sb.append(tasks.size()).append(" traced tasks, ").append(seconds(done - submitted)).append("s from submit to done\n\n");
+
+        TaskTrace last = null;
+        for (TaskTrace task : tasks) {
+            if (last == null || task.hops.get("aggregate") > last.hops.get("aggregate")) {
+                last = task;
+            }
+        }
+        long lastResult = last != null ? last.hops.get("aggregate") : done;
+
+        sb.append("Job stages (s)\n");
+        line(sb, "submit -> manager", accepted - submitted);
+        line(sb, "manager -> dispatched", dispatched - accepted);
+        line(sb, "dispatched -> last result", lastResult - dispatched);
+        line(sb, "last result -> done", done - lastResult);
+
+        if (predicted > 0) {
+            sb.append("\nSchedule (s from submit)\n");
+            line(sb, "predicted done", predicted - submitted);
+            line(sb, "actual done", done - submitted);
+            if (deadline > 0) {
+                line(sb, "deadline", deadline - submitted);
+                sb.append(done <= deadline ? "Deadline met\n" : "Deadline missed\n");
+            }
+        }
+
+        sb.append("\nTask stages (s)        total      max\n");
+        for (String stage : TASK_STAGES) {
+            long total = 0;
+            long max = 0;
+            for (TaskTrace task : tasks) {
+                long duration = task.stage(stage);
+                if (duration >= 0) {
+                    total += duration;
+                    max = Math.max(max, duration);
+                }
+            }
+            sb.append(String.format("  %-18s %9s %8s%n", stage, seconds(total), seconds(max)));
+        }
+
+        sb.append("\nTasks (s): trace type boot queue download parse upload report url\n");
+        for (TaskTrace task : tasks) {
+            sb.append("  ").append(task.hops.containsKey("trace") ? task.hops.get("trace") : "-").append(' ').append(task.type);
+            for (String stage : TASK_STAGES) {
+                long duration = task.stage(stage);
+                sb.append(' ').append(duration >= 0 ? seconds(duration) : "-");
+            }
+            sb.append(' ').append(task.url).append(task.failed ? " (failed)" : "").append('\n');
+        }
+
+        if (last != null) {
+            sb.append("\nCritical path: ").append(last.type).append(' ').append(last.url).append('\n');
+            Map<String, Long> path = new LinkedHashMap<>();
+            path.put("submit -> manager", accepted - submitted);
+            path.put("manager -> dispatch", last.hops.containsKey("dispatch") ? last.hops.get("dispatch") - accepted : -1);
+            for (String stage : TASK_STAGES) {
+                path.put(stage, last.stage(stage));
+            }
+            path.put("aggregation", done - lastResult);
+
+            String slowest = null;
+            long total = done - submitted;
+            for (Map.Entry<String, Long> segment : path.entrySet()) {
+                long duration = segment.getValue();
+                if (duration < 0) {
+                    sb.append(String.format("  %-20s %9s%n", segment.getKey(), "-"));
+                    continue;
+                }
+                sb.append(String.format("  %-20s %9s %5.1f%%%n", segment.getKey(), seconds(duration),
+                        total > 0 ? duration * 100.0 / total : 0));
+                if (slowest == null || duration > path.get(slowest)) {
+                    slowest = segment.getKey();
+                }
+            }
+            sb.append("Slowest stage on the critical path: ").append(slowest).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String label, long millis) {
+        sb.append(String.format("  %-28s %9s%n", label, seconds(millis)));
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%.1f", millis / 1000.0);
+    }
+
+    private static class TaskTrace {
+        final String type;
+        final String url;
+        final boolean failed;
+        final Map<String, Long> hops;
+
+        TaskTrace(String type, String url, boolean failed, Map<String, Long> hops) {
+            this.type = type;
+            this.url = url;
+            this.failed = failed;
+            this.hops = hops;
+        }
+
+        // Milliseconds spent in a stage, or -1 if the hops it needs are missing
+        // (e.g. a task that failed while downloading has no parse or upload hop)
+        long stage(String stage) {
+            Long dispatch = hops.get("dispatch");
+            Long ready = hops.get("ready");
+            Long receive = hops.get("receive");
+            switch (stage) {
+                case "boot":
+                    // Waiting for a worker that only started polling after the task was sent
+                    if (dispatch == null || receive == null) return -1;
+                    return ready != null && ready > dispatch ? Math.min(ready, receive) - dispatch : 0;
+                case "queue":
+                    if (dispatch == null || receive == null) return -1;
+                    return receive - (ready != null ? Math.max(Math.min(ready, receive), dispatch) : dispatch);
+                case "download":
+                    return between("receive", "download");
+                case "parse":
+                    return between("download", "parse");
+                case "upload":
+                    return between("parse", "upload");
+                case "report":
+                    // Result message in the queue plus the manager picking it up
+                    return between("upload", "aggregate");
+                default:
+                    return -1;
+            }
+        }
+
+        private long between(String from, String to) {
+            Long start = hops.get(from);
+            Long end = hops.get(to);
+            return start == null || end == null ? -1 : end - start;
+        }
+    }
+}
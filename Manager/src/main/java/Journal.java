@@ -0,0 +1,404 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only journal of the jobs in progress, so a Manager that crashed and was restarted (see the
+// restart loop in the Manager user data) finishes its jobs instead of leaving the clients waiting.
+// Every change is appended before it takes effect:
+// job <appId> <totalTasks> <options|-> <s3Key>
+// dispatched <appId>
+// result <appId> <task> <ANALYSIS_TYPE> <URL> <result> [stats=<label counts>]
+// done <appId>
+// where task is the task's trace index in the job (results are deduplicated by it). Once the log
+// grows past COMPACT_AFTER_RECORDS it is compacted into a snapshot of the unfinished jobs in the
+// same format. Both files are on local disk and copied to s3://<bucket>/journal/<shard>/ every few seconds,
+// which covers losing the instance as well, minus the last interval.
+// Memory only holds which tasks were answered; the results themselves are streamed from the files
+// when they are needed again - on recovery and when compacting.
+class Journal {
+
+    private static String logPath;
+    private static String snapshotPath;
+    // journal/<shard>/ - every Manager shard keeps its own journal; null if it isn't backed up
+    private static String s3Prefix;
+    private static final int COMPACT_AFTER_RECORDS = 5000;
+    private static final long BACKUP_INTERVAL_MILLIS = 5000;
+
+    interface ResultHandler {
+        void accept(String appId, int task, String result) throws IOException;
+    }
+
+    private interface RecordHandler {
+        void accept(String record) throws IOException;
+    }
+
+    // Durable state of every unfinished job, rebuilt from the snapshot and the log on recovery
+    private static final Map<String, JobRecord> jobs = new LinkedHashMap<>();
+    private static BufferedWriter log;
+    private static int records = 0;
+    // A snapshot replaces the logs of older generations
+    private static long generation = 0;
+    private static boolean logChanged = false;
+    private static boolean snapshotChanged = false;
+    // Results without a trace index can't be matched to a task - each gets a key of its own
+    private static int untracedResults = 0;
+    // A journal from a previous run was found
+    private static boolean restarted = false;
+
+    static class JobRecord {
+        final String appId;
+        final int totalTasks;
+        final String options;
+        final String s3Key;
+        boolean dispatched = false;
+        // Trace indexes of the answered tasks; results counts the untraced ones too
+        private final BitSet answered = new BitSet();
+        private int results = 0;
+
+        JobRecord(String appId, int totalTasks, String options, String s3Key) {
+            this.appId = appId;
+            this.totalTasks = totalTasks;
+            this.options = options;
+            this.s3Key = s3Key;
+        }
+
+        boolean hasResult(int task) {
+            return task >= 0 && answered.get(task);
+        }
+
+        int resultCount() {
+            return results;
+        }
+
+        int remainingTasks() {
+            return totalTasks - results;
+        }
+    }
+
+    // Loads the snapshot and the log, from local disk or else from the S3 copy, and returns the
+    // unfinished jobs; their results are read with forEachResult. Recovered state is compacted right
+    // away so the new log starts empty.
+    static List<JobRecord> recover() {
+        return recover("journal", "journal/" + Manager.getShard() + "/");
+    }
+
+    // The journal in directory, backed up under s3Prefix (null for a local journal only, e.g. in
+    // tests). The in-memory state starts over, as in a new process.
+    static synchronized List<JobRecord> recover(String directory, String backupPrefix) {
+        logPath = directory + "/journal.log";
+        snapshotPath = directory + "/snapshot";
+        s3Prefix = backupPrefix;
+        jobs.clear();
+        closeLog();
+        records = 0;
+        generation = 0;
+        untracedResults = 0;
+        new File(directory).mkdirs();
+        if (s3Prefix != null && !new File(snapshotPath).exists() && !new File(logPath).exists()) {
+            download(s3Prefix + "snapshot", snapshotPath);
+            download(s3Prefix + "journal.log", logPath);
+        }
+        restarted = new File(snapshotPath).exists() || new File(logPath).exists();
+        try {
+            generation = forEachRecord(Journal::replay);
+        } catch (IOException | NumberFormatException e) {
+            throw new RuntimeException("Failed to read the job journal", e);
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open the job journal", e);
+        }
+        if (!jobs.isEmpty()) {
+            System.out.println("Journal: recovered " + jobs.size() + " unfinished jobs");
+        }
+        return new ArrayList<>(jobs.values());
+    }
+
+    static synchronized boolean isRestart() {
+        return restarted;
+    }
+
+    static synchronized boolean hasJob(String appId) {
+        return jobs.containsKey(appId);
+    }
+
+    static synchronized void jobAccepted(String appId, int totalTasks, String options, String s3Key) {
+        append("job " + appId + " " + totalTasks + " " + (options.isEmpty() ? "-" : options) + " " + s3Key);
+    }
+
+    static synchronized void dispatched(String appId) {
+        append("dispatched " + appId);
+    }
+
+    // Records a task result; false if the job is unknown (already done), has all its results
+    // (and is being finished) or the task was answered before
+    static synchronized boolean result(String appId, Integer task, String result) {
+        JobRecord job = jobs.get(appId);
+        if (job == null || job.remainingTasks() <= 0 || (task != null && job.hasResult(task))) {
+            return false;
+        }
+        append("result " + appId + " " + (task != null ? task : --untracedResults) + " " + result);
+        return true;
+    }
+
+    static synchronized void done(String appId) {
+        append("done " + appId);
+    }
+
+    // Streams the results of the unfinished jobs from the journal files, once per task
+    static synchronized void forEachResult(ResultHandler handler) throws IOException {
+        Map<String, BitSet> seen = new HashMap<>();
+        forEachRecord(record -> {
+            if (!record.startsWith("result ")) {
+                return;
+            }
+            String[] fields = record.substring("result ".length()).split(" ", 3);
+            if (fields.length < 3 || !jobs.containsKey(fields[0])) {
+                return;
+            }
+            int task;
+            try {
+                task = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                // Skipped on replay as well
+                return;
+            }
+            if (task >= 0) {
+                BitSet jobSeen = seen.computeIfAbsent(fields[0], appId -> new BitSet());
+                if (jobSeen.get(task)) {
+                    return;
+                }
+                jobSeen.set(task);
+            }
+            handler.accept(fields[0], task, fields[2]);
+        });
+    }
+
+    // Copies the journal to S3 in the background
+    static void startBackup() {
+        Thread backup = new Thread(() -> {
+            while (!Manager.isTerminated()) {
+                try {
+                    Thread.sleep(BACKUP_INTERVAL_MILLIS);
+                    backup();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // The local journal is intact - try again on the next interval
+                    System.err.println("Journal backup failed: " + e.getMessage());
+                }
+            }
+        }, "journal-backup");
+        backup.setDaemon(true);
+        backup.start();
+    }
+
+    private static void backup() throws IOException {
+        String snapshotCopy = null;
+        String logCopy = null;
+        synchronized (Journal.class) {
+            // Copy under the lock so the uploads see a consistent pair of files
+            if (snapshotChanged) {
+                snapshotCopy = snapshotPath + ".upload";
+                Files.copy(Paths.get(snapshotPath), Paths.get(snapshotCopy), StandardCopyOption.REPLACE_EXISTING);
+                snapshotChanged = false;
+            }
+            if (logChanged) {
+                logCopy = logPath + ".upload";
+                Files.copy(Paths.get(logPath), Paths.get(logCopy), StandardCopyOption.REPLACE_EXISTING);
+                logChanged = false;
+            }
+        }
+        if (snapshotCopy != null) {
+            AWS.getInstance().uploadToS3(s3Prefix + "snapshot", snapshotCopy);
+        }
+        if (logCopy != null) {
+            AWS.getInstance().uploadToS3(s3Prefix + "journal.log", logCopy);
+        }
+    }
+
+    private static void append(String record) {
+        try {
+            log.write(record);
+            log.newLine();
+            // Flushed to the OS on every record - enough to survive the JVM dying
+            log.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to write job journal: " + e.getMessage());
+        }
+        apply(record);
+        records++;
+        logChanged = true;
+        if (records >= COMPACT_AFTER_RECORDS) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Failed to compact job journal: " + e.getMessage());
+            }
+        }
+    }
+
+    // Writes the unfinished jobs to a new snapshot and starts an empty log of the next generation.
+    // Their results are copied over from the current snapshot and log.
+    private static void compact() throws IOException {
+        long nextGeneration = generation + 1;
+        File snapshot = new File(snapshotPath + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(snapshot))) {
+            writer.write("generation " + nextGeneration);
+            writer.newLine();
+            for (JobRecord job : jobs.values()) {
+                writer.write("job " + job.appId + " " + job.totalTasks + " " + job.options + " " + job.s3Key);
+                writer.newLine();
+                if (job.dispatched) {
+                    writer.write("dispatched " + job.appId);
+                    writer.newLine();
+                }
+            }
+            forEachResult((appId, task, result) -> {
+                writer.write("result " + appId + " " + task + " " + result);
+                writer.newLine();
+            });
+        }
+        Files.move(snapshot.toPath(), Paths.get(snapshotPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = nextGeneration;
+
+        closeLog();
+        log = new BufferedWriter(new FileWriter(logPath));
+        log.write("generation " + generation);
+        log.newLine();
+        log.flush();
+        records = 0;
+        snapshotChanged = true;
+        logChanged = true;
+    }
+
+    private static void closeLog() {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close job journal: " + e.getMessage());
+        }
+        log = null;
+    }
+
+    // Reads the snapshot and then the log; returns the generation of the newest file read
+    private static long forEachRecord(RecordHandler handler) throws IOException {
+        long snapshotGeneration = forEachRecord(snapshotPath, 0, handler);
+        return forEachRecord(logPath, snapshotGeneration, handler);
+    }
+
+    private static long forEachRecord(String path, long minGeneration, RecordHandler handler) throws IOException {
+        if (!new File(path).exists()) {
+            return minGeneration;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line = reader.readLine();
+            long fileGeneration = minGeneration;
+            if (line != null && line.startsWith("generation ")) {
+                fileGeneration = Long.parseLong(line.substring("generation ".length()));
+                if (fileGeneration < minGeneration) {
+                    // A log older than the snapshot - everything in it is in the snapshot already
+                    return minGeneration;
+                }
+                line = reader.readLine();
+            }
+            // Every record ends with a line break - a last line without one was cut short by a crash
+            boolean cutShort = !endsWithLineBreak(path);
+            for (String next; line != null; line = next) {
+                next = reader.readLine();
+                if (next == null && cutShort) {
+                    System.err.println("Journal: skipping record cut short at the end of " + path + ": " + line);
+                    break;
+                }
+                handler.accept(line);
+            }
+            return fileGeneration;
+        }
+    }
+
+    private static boolean endsWithLineBreak(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            if (file.length() == 0) {
+                return true;
+            }
+            file.seek(file.length() - 1);
+            return file.read() == '\n';
+        }
+    }
+
+    private static void replay(String record) {
+        try {
+            apply(record);
+        } catch (RuntimeException e) {
+            // A record cut short by the crash
+            System.err.println("Journal: skipping unreadable record: " + record);
+        }
+    }
+
+    private static void apply(String record) {
+        String[] parts = record.split(" ", 2);
+        String[] fields;
+        switch (parts[0]) {
+            case "job":
+                fields = parts[1].split(" ", 4);
+                if (!jobs.containsKey(fields[0])) {
+                    jobs.put(fields[0], new JobRecord(fields[0], Integer.parseInt(fields[1]), fields[2], fields[3]));
+                }
+                break;
+            case "dispatched":
+                JobRecord dispatchedJob = jobs.get(parts[1]);
+                if (dispatchedJob != null) {
+                    dispatchedJob.dispatched = true;
+                }
+                break;
+            case "result":
+                fields = parts[1].split(" ", 3);
+                if (fields.length < 3) {
+                    throw new IllegalArgumentException("Incomplete journal record: " + record);
+                }
+                JobRecord job = jobs.get(fields[0]);
+                if (job != null) {
+                    int task = Integer.parseInt(fields[1]);
+                    if (task < 0 || !job.answered.get(task)) {
+                        job.results++;
+                        if (task >= 0) {
+                            job.answered.set(task);
+                        }
+                    }
+                    untracedResults = Math.min(untracedResults, task);
+                }
+                break;
+            case "done":
+                jobs.remove(parts[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal record: " + record);
+        }
+    }
+
+    private static void download(String key, String path) {
+        try {
+            AWS.getInstance().downloadFromS3(key, path);
+            System.out.println("Journal: restored " + path + " from S3");
+        } catch (Exception e) {
+            // Nothing was backed up yet - a fresh start
+        }
+    }
+}
@@ -1,20 +1,95 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Manager {
 
+    // Each analysis type has its own worker queue and its own share of the worker fleet
+    static final List<String> ANALYSIS_TYPES = Arrays.asList("POS", "CONSTITUENCY", "DEPENDENCY");
+
     private static final AWS aws = AWS.getInstance();
     private static final ConcurrentHashMap<String, Integer> filesInProcess = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, JobOptions> jobOptions = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> taskTotals = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Long> jobStartNanos = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, JobTrace> jobTraces = new ConcurrentHashMap<>();
     private static Boolean terminate = false;
     private static Boolean inputHandlerFinished = false;
     private static int n;
+    private static final List<String> workerArgs = new ArrayList<>();
+    // This instance owns the appIds the clients' hash ring maps to shard <shard> of <shards>.
+    // Shard 0 also runs the worker fleet all shards share.
+    private static int shard = 0;
+    private static int shards = 1;
+    private static final long QUEUE_METRICS_REFRESH_MILLIS = 15_000;
 
     public static void main(String[] args) {
         if (args.length > 0) {
             n = Integer.parseInt(args[0]);
         }
+        // warmPool=<workers> and idleTimeout=<minutes> size the worker fleet, shard=<i> and
+        // shards=<k> place this instance; the remaining arguments are forwarded to the workers,
+        // e.g. "POS=tagger DEPENDENCY=nndep"
+        int warmPool = 0;
+        int idleTimeout = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("shard=")) {
+                shard = Integer.parseInt(args[i].substring("shard=".length()));
+            } else if (args[i].startsWith("shards=")) {
+                shards = Integer.parseInt(args[i].substring("shards=".length()));
+            } else if (args[i].startsWith("warmPool=")) {
+                warmPool = Integer.parseInt(args[i].substring("warmPool=".length()));
+            } else if (args[i].startsWith("idleTimeout=")) {
+                idleTimeout = Integer.parseInt(args[i].substring("idleTimeout=".length()));
+            } else if (Engines.isDefaultArg(args[i]) && !Engines.setDefault(args[i])) {
+                System.err.println("Ignoring " + args[i] + ": the engine doesn't support this analysis type");
+            } else {
+                workerArgs.add(args[i]);
+            }
+        }
+        WorkerPool.configure(warmPool, idleTimeout);
+
+        aws.getEC2Tags(shard);
+        aws.createWorkerQueues(ANALYSIS_TYPES, shards);
+        System.out.println("Manager shard " + shard + " of " + shards + (ownsFleet() ? ", managing the worker fleet" : ""));
+
+        // Pick up the jobs of a previous run that crashed
+        for (Journal.JobRecord job : Journal.recover()) {
+            recoverJob(job);
+        }
+        try {
+            // The results stay in the journal files until they are spilled again
+            Journal.forEachResult((appId, task, result) -> OutputHandler.recoverResult(appId, result));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the results of the recovered jobs", e);
+        }
+        Journal.startBackup();
 
-        aws.getEC2Tags();
-        aws.createWorkerQueues();
+        Metrics.register(Manager::collectMetrics);
+        Metrics.register(Manager::collectQueueMetrics, QUEUE_METRICS_REFRESH_MILLIS);
+        Metrics.start();
+
+        if (ownsFleet()) {
+            Thread workerRegistryThread = new Thread(new WorkerRegistry());
+            workerRegistryThread.setDaemon(true);
+            workerRegistryThread.start();
+
+            // After a restart the running workers re-register through their heartbeats instead
+            if (!Journal.isRestart()) {
+                WorkerPool.prewarm();
+            }
+            Thread workerPoolThread = new Thread(new WorkerPool());
+            workerPoolThread.setDaemon(true);
+            workerPoolThread.start();
+        }
+
+        Thread dispatcherThread = new Thread(new Dispatcher());
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
 
         Thread inputHandlerThread = new Thread(new InputHandler());
         Thread outputHandlerThread = new Thread(new OutputHandler());
@@ -30,10 +105,61 @@ public class Manager {
         }
     }
 
-    public static void addNewTask(String appId, int numOfFiles) {
+    public static void addNewTask(String appId, int numOfFiles, JobOptions options, JobTrace trace) {
+        jobOptions.put(appId, options);
+        jobTraces.put(appId, trace);
+        taskTotals.put(appId, numOfFiles);
+        jobStartNanos.put(appId, System.nanoTime());
         filesInProcess.put(appId, numOfFiles);
     }
 
+    // Restores a journaled job: results that arrived before the crash are kept, and tasks are only
+    // sent again if the job hadn't been fully dispatched. Workers answer the rest from the queues.
+    private static void recoverJob(Journal.JobRecord job) {
+        JobOptions options = new JobOptions(job.options.equals("-") ? null : job.options);
+        System.out.println("Recovering job " + job.appId + ": " + job.resultCount() + "/" + job.totalTasks + " results"
+                + (job.dispatched ? "" : ", re-dispatching"));
+        jobOptions.put(job.appId, options);
+        taskTotals.put(job.appId, job.totalTasks);
+        jobStartNanos.put(job.appId, System.nanoTime());
+        if (job.remainingTasks() > 0) {
+            filesInProcess.put(job.appId, job.remainingTasks());
+        }
+        OutputHandler.recover(job.appId, options, job.remainingTasks() == 0);
+        if (!job.dispatched) {
+            InputHandler.redispatch(job, options);
+        }
+    }
+
+    public static int getTotalTasks(String appId) {
+        return taskTotals.getOrDefault(appId, 0);
+    }
+
+    public static int getRemainingTasks(String appId) {
+        return filesInProcess.getOrDefault(appId, 0);
+    }
+
+    public static JobOptions getJobOptions(String appId) {
+        return jobOptions.getOrDefault(appId, new JobOptions(null));
+    }
+
+    public static JobTrace getJobTrace(String appId) {
+        return jobTraces.get(appId);
+    }
+
+    public static JobTrace removeJobTrace(String appId) {
+        return jobTraces.remove(appId);
+    }
+
+    public static void removeJob(String appId) {
+        jobOptions.remove(appId);
+        taskTotals.remove(appId);
+        Long started = jobStartNanos.remove(appId);
+        if (started != null) {
+            Metrics.observe("manager_job_seconds", (System.nanoTime() - started) / 1e9);
+        }
+    }
+
     public static boolean fileProcessed(String appId) {
         filesInProcess.computeIfPresent(appId, (key, val) -> val - 1);
         if (filesInProcess.get(appId) == 0) {
@@ -71,7 +197,73 @@ public class Manager {
         }
     }
 
+    // The queue depths cost a GetQueueAttributes call per queue - refreshed on a timer, not per scrape
+    private static void collectQueueMetrics(StringBuilder out) {
+        Map<String, int[]> depths = aws.getQueueDepths();
+        Metrics.type(out, "manager_queue_messages", "gauge");
+        for (Map.Entry<String, int[]> queue : depths.entrySet()) {
+            Metrics.sample(out, "manager_queue_messages", queue.getValue()[0], "queue", queue.getKey(), "state", "visible");
+            Metrics.sample(out, "manager_queue_messages", queue.getValue()[1], "queue", queue.getKey(), "state", "in_flight");
+        }
+    }
+
+    // Scrape-time view of the jobs in progress and the worker fleet (in memory only)
+    private static void collectMetrics(StringBuilder out) {
+        Metrics.type(out, "manager_job_tasks_remaining", "gauge");
+        for (Map.Entry<String, Integer> job : filesInProcess.entrySet()) {
+            Metrics.sample(out, "manager_job_tasks_remaining", job.getValue(), "app_id", job.getKey());
+        }
+        Metrics.type(out, "manager_job_tasks", "gauge");
+        for (Map.Entry<String, Integer> job : taskTotals.entrySet()) {
+            Metrics.sample(out, "manager_job_tasks", job.getValue(), "app_id", job.getKey());
+        }
+
+        Map<String, Integer> workersByState = new TreeMap<>();
+        workersByState.put("launching", WorkerRegistry.launchingCount());
+        for (WorkerRegistry.WorkerStatus worker : WorkerRegistry.getWorkers()) {
+            workersByState.merge(worker.state, 1, Integer::sum);
+        }
+        Metrics.type(out, "manager_workers", "gauge");
+        for (Map.Entry<String, Integer> state : workersByState.entrySet()) {
+            Metrics.sample(out, "manager_workers", state.getValue(), "state", state.getKey());
+        }
+        Metrics.type(out, "manager_worker_free_heap_bytes", "gauge");
+        for (WorkerRegistry.WorkerStatus worker : WorkerRegistry.getWorkers()) {
+            Metrics.sample(out, "manager_worker_free_heap_bytes", worker.freeHeapMb * 1024 * 1024, "instance", worker.instanceId);
+        }
+        Metrics.type(out, "manager_worker_sentences_per_second", "gauge");
+        for (WorkerRegistry.WorkerStatus worker : WorkerRegistry.getWorkers()) {
+            Metrics.sample(out, "manager_worker_sentences_per_second", worker.sentencesPerSecond, "instance", worker.instanceId);
+        }
+        Metrics.type(out, "manager_worker_capacity", "gauge");
+        for (String type : ANALYSIS_TYPES) {
+            Metrics.sample(out, "manager_worker_capacity", WorkerRegistry.capacity(type), "type", type);
+        }
+        Metrics.type(out, "manager_held_messages", "gauge");
+        for (String type : ANALYSIS_TYPES) {
+            Metrics.sample(out, "manager_held_messages", Dispatcher.heldMessages(type), "type", type);
+        }
+        Metrics.type(out, "manager_task_seconds", "gauge");
+        for (String type : ANALYSIS_TYPES) {
+            Metrics.sample(out, "manager_task_seconds", Dispatcher.getTaskSeconds(type), "type", type);
+        }
+        Metrics.type(out, "manager_warm_pool_workers", "gauge");
+        Metrics.sample(out, "manager_warm_pool_workers", WorkerPool.getWarmPoolSize());
+    }
+
     public static int getN() {
         return n;
     }
+
+    public static List<String> getWorkerArgs() {
+        return workerArgs;
+    }
+
+    public static int getShard() {
+        return shard;
+    }
+
+    public static boolean ownsFleet() {
+        return shard == 0;
+    }
 }
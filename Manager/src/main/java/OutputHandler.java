@@ -1,20 +1,69 @@
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.sqs.model.Message;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 class OutputHandler implements Runnable { 
 
     private static final AWS aws = AWS.getInstance();
-    private static final ConcurrentHashMap<String, List<String>> processedParts = new ConcurrentHashMap<>();
+    // Results of the jobs in progress, spilled to disk as they arrive
+    private static final ConcurrentHashMap<String, ResultSpill> spills = new ConcurrentHashMap<>();
+    // Label counts of jobs that asked for corpus statistics, merged as the results arrive
+    private static final ConcurrentHashMap<String, CorpusStats> corpusStats = new ConcurrentHashMap<>();
+    // Recovered jobs that had all their results before the crash but weren't finished
+    private static final ConcurrentLinkedQueue<String> recoveredToFinish = new ConcurrentLinkedQueue<>();
+    // Finishing a job reads its results again for the archive and the index, so it runs here
+    // instead of holding up the results of the other jobs
+    private static final int FINISH_THREADS = 2;
+    private static final ExecutorService finishers = Executors.newFixedThreadPool(FINISH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "job-finisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Starts a new spill for a job recovered from the journal - whatever the previous run had spilled
+    // is rewritten from the journaled results (see recoverResult)
+    static void recover(String appId, JobOptions options, boolean complete) {
+        spills.put(appId, openSpill(appId, options));
+        if (complete) {
+            recoveredToFinish.add(appId);
+        }
+    }
+
+    // Restores one journaled result of a recovered job ("<TYPE> <URL> <result> [stats=...]")
+    static void recoverResult(String appId, String result) {
+        ResultSpill spill = spills.get(appId);
+        if (spill == null) {
+            return;
+        }
+        String[] parts = result.split(" ");
+        try {
+            spill.add(parts[0], parts[1], parts[2]);
+        } catch (IOException e) {
+            System.err.println("Failed to spill recovered result for appId " + appId + ": " + e.getMessage());
+        }
+        if (parts.length > 3 && parts[3].startsWith("stats=")) {
+            corpusStats.computeIfAbsent(appId, key -> new CorpusStats()).merge(parts[0], parts[3]);
+        }
+    }
 
     @Override
     public void run() {
+        for (String appId = recoveredToFinish.poll(); appId != null; appId = recoveredToFinish.poll()) {
+            finishTask(appId);
+        }
         while (!Manager.isTerminated()) {
             getAndHandleMessage();
         }
@@ -26,54 +75,278 @@ class OutputHandler implements Runnable {
         if (!messages.isEmpty()) {
             Message message = messages.get(0);
             String body = message.body();
-            String[] parts = body.split(" ");
-            String task = parts[0];
-            String url = parts[1];
-            String resultS3Key = parts[2];
-            String appId = parts[3];
-            
-            String lineForHtmlOutput = "<li>" + task + ": " + url + " " + resultS3Key + "</li>";
-            
-            processedParts.putIfAbsent(appId, new ArrayList<>());
-            processedParts.get(appId).add(lineForHtmlOutput);
-
-            if (Manager.fileProcessed(appId)) {
-                finishTask(appId);
+            if (body.startsWith(TaskPacker.PACK_HEADER + " ")) {
+                // One result line per packed task after the "pack <appId>" header
+                String[] lines = body.split("\n");
+                for (int i = 1; i < lines.length; i++) {
+                    handleResult(lines[i]);
+                }
+            } else {
+                handleResult(body);
             }
 
             aws.deleteMessageFromWorkersToManager(message);
         }
     }
 
+    private void handleResult(String result) {
+        String[] parts = result.split(" ");
+        String task = parts[0];
+        String url = parts[1];
+        String resultS3Key = parts[2];
+        String appId = parts[3];
+        // Optional fields after the appId: the trace token and the label counts
+        String traceToken = null;
+        String statsToken = null;
+        for (int i = 4; i < parts.length; i++) {
+            if (parts[i].startsWith("trace=")) {
+                traceToken = parts[i];
+            } else if (parts[i].startsWith("stats=")) {
+                statsToken = parts[i];
+            }
+        }
+
+        // Journaled before it counts - a result seen before (redelivered, or a task that ran
+        // twice around a crash) or of a finished job is dropped
+        Integer taskIndex = traceToken != null ? traceIndex(traceToken) : null;
+        if (!Journal.result(appId, taskIndex, task + " " + url + " " + resultS3Key + (statsToken != null ? " " + statsToken : ""))) {
+            System.out.println("Ignoring duplicate result for appId " + appId + ": " + task + " " + url);
+            return;
+        }
+
+        Dispatcher.taskAnswered(appId, task, resultS3Key.startsWith("ERROR:"), traceToken);
+        JobTrace trace = Manager.getJobTrace(appId);
+        if (trace != null && traceToken != null) {
+            trace.addResult(task, url, resultS3Key.startsWith("ERROR:"), traceToken, System.currentTimeMillis());
+        }
+        if (statsToken != null) {
+            corpusStats.computeIfAbsent(appId, key -> new CorpusStats()).merge(task, statsToken);
+        }
+        Metrics.increment("manager_results_total", "outcome", resultS3Key.startsWith("ERROR:") ? "error" : "success");
+
+        try {
+            spills.computeIfAbsent(appId, key -> openSpill(key, Manager.getJobOptions(key))).add(task, url, resultS3Key);
+        } catch (IOException e) {
+            // The journal still has the result - only this run's summary misses the line
+            System.err.println("Failed to spill result for appId " + appId + ": " + e.getMessage());
+        }
+
+        boolean jobDone = Manager.fileProcessed(appId);
+        publishEntry(appId, task, url, resultS3Key);
+        if (jobDone) {
+            finishTask(appId);
+        }
+    }
+
+    // The task's index in its job, from the "trace=<n>,..." token
+    private static Integer traceIndex(String traceToken) {
+        for (String hop : traceToken.split(",")) {
+            if (hop.startsWith("trace=")) {
+                try {
+                    return Integer.parseInt(hop.substring("trace=".length()));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Lets the client follow the job and start on finished results before the last one arrives
+    private void publishEntry(String appId, String task, String url, String result) {
+        if (!aws.hasReplyQueue(appId)) {
+            return;
+        }
+        int total = Manager.getTotalTasks(appId);
+        int completed = total - Manager.getRemainingTasks(appId);
+        aws.sendMessageToLocalApplication(appId, "entry " + completed + "/" + total + " " + task + " " + url + " " + result + " " + appId);
+    }
+
+    private static ResultSpill openSpill(String appId, JobOptions options) {
+        try {
+            return new ResultSpill(appId, options.has(JobOptions.ARCHIVE) || options.has(JobOptions.INDEX));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open result spill for appId " + appId, e);
+        }
+    }
+
+    // Hands the job's results over to a finisher; no more results are accepted for it
     private void finishTask(String appId) {
-        List<String> lines = processedParts.remove(appId);
+        JobOptions options = Manager.getJobOptions(appId);
+        ResultSpill spill = spills.remove(appId);
+        if (spill == null) {
+            // A job without results
+            spill = openSpill(appId, options);
+        }
+        CorpusStats stats = corpusStats.remove(appId);
+        Manager.removeJob(appId);
+        ResultSpill results = spill;
+        finishers.execute(() -> finishJob(appId, options, results, stats));
+    }
+
+    // The summary is already on disk - finishing it only appends the links and seals it
+    private void finishJob(String appId, JobOptions options, ResultSpill spill, CorpusStats stats) {
+        long start = System.nanoTime();
         String outputFilePath = "outputs/" + appId + "/output.html";
-        File file = new File(outputFilePath);
-        
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            writer.write("<html><body><h1>Analysis Results</h1><ul>");
-            for (String line : lines) {
-                writer.write(line);
-                writer.newLine();
-            }
-            writer.write("</ul></body></html>");
+
+        String archiveKey = null;
+        if (spill.hasEntries() && options.has(JobOptions.ARCHIVE)) {
+            archiveKey = createArchive(appId, spill);
+        }
+        String indexKey = null;
+        if (spill.hasEntries() && options.has(JobOptions.INDEX)) {
+            long indexStart = System.nanoTime();
+            indexKey = createIndex(appId, spill, options.has(JobOptions.COMPRESS));
+            Metrics.observe("manager_stage_seconds", (System.nanoTime() - indexStart) / 1e9, "stage", "index");
+        }
+        String statsKey = null;
+        if (stats != null) {
+            statsKey = uploadCorpusStats(appId, stats);
+        }
+
+        StringBuilder footer = new StringBuilder();
+        if (archiveKey != null) {
+            footer.append("<p>All results: ").append(archiveKey).append(" (index: ").append(archiveKey.replace(".gz", ".idx")).append(")</p>");
+        }
+        if (indexKey != null) {
+            footer.append("<p>Sentence index: ").append(indexKey).append("</p>");
+        }
+        if (statsKey != null) {
+            footer.append("<p>Corpus statistics: ").append(statsKey).append("</p>");
+        }
+        if (Manager.getJobTrace(appId) != null) {
+            footer.append("<p>Timing report: outputs/").append(appId).append("/timing.txt</p>");
+        }
+        try {
+            aws.uploadToS3(outputFilePath, spill.seal(footer.toString()).getPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spill.delete();
+        Metrics.observe("manager_stage_seconds", (System.nanoTime() - start) / 1e9, "stage", "aggregation");
+        Dispatcher.jobFinished(appId);
+        uploadTimingReport(appId);
+
+        aws.sendMessageToLocalApplication(appId, "done:" + outputFilePath + ":" + appId);
+        aws.forgetReplyQueue(appId);
+        Journal.done(appId);
+    }
+
+    private void uploadTimingReport(String appId) {
+        JobTrace trace = Manager.removeJobTrace(appId);
+        if (trace == null) {
+            return;
+        }
+        String reportPath = "outputs/" + appId + "/timing.txt";
+        File reportFile = new File(reportPath);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(reportFile))) {
+            writer.write(trace.report(System.currentTimeMillis()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        aws.uploadToS3(reportPath, reportPath);
+        reportFile.delete();
+    }
+
+    // Returns the statistics' S3 key, or null if they could not be written
+    private String uploadCorpusStats(String appId, CorpusStats stats) {
+        String statsPath = "outputs/" + appId + "/stats.txt";
+        File statsFile = new File(statsPath);
+        try {
+            stats.write(statsFile, appId);
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
+        aws.uploadToS3(statsPath, statsPath);
+        statsFile.delete();
+        return statsPath;
+    }
 
-        aws.uploadToS3(outputFilePath, outputFilePath);
-        file.delete();
+    // Merges the workers' sentence postings of every result into the job's index. Returns the
+    // index's S3 key, or null if it could not be built (the HTML summary is still sent)
+    private String createIndex(String appId, ResultSpill spill, boolean compressed) {
+        String indexPath = "outputs/" + appId + "/index.gz";
+        File indexFile = new File(indexPath);
+        try {
+            ResultIndex index = new ResultIndex();
+            spill.forEachEntry((type, url, result) -> {
+                if (result.startsWith("ERROR:")) {
+                    return;
+                }
+                try {
+                    String postingsKey = aws.keyFromPublicUrl(result) + ".postings";
+                    String postings = new String(aws.downloadBytesFromS3(postingsKey).asByteArray(), StandardCharsets.UTF_8);
+                    index.addFile(type, url, result, compressed, postings);
+                } catch (Exception e) {
+                    // Leave the result out of the index rather than lose the index
+                    System.err.println("No sentence postings for " + type + " " + url + ": " + e.getMessage());
+                }
+            });
+            index.write(indexFile);
+            aws.uploadToS3(indexPath, indexPath);
+            System.out.println("Indexed " + index.fileCount() + " results for appId " + appId);
+            return indexPath;
+        } catch (Exception e) {
+            System.err.println("Failed to build sentence index for appId " + appId + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            indexFile.delete();
+        }
+    }
 
-        aws.sendMessageToLocalApplication("done:" + outputFilePath + ":" + appId);
+    // Returns the archive's S3 key, or null if it could not be built (the HTML summary is still sent)
+    private String createArchive(String appId, ResultSpill spill) {
+        String archivePath = "outputs/" + appId + "/results.gz";
+        String indexPath = "outputs/" + appId + "/results.idx";
+        File archiveFile = new File(archivePath);
+        File indexFile = new File(indexPath);
+        try {
+            try (ResultArchive archive = new ResultArchive(archiveFile, indexFile)) {
+                spill.forEachEntry((type, url, result) -> {
+                    if (result.startsWith("ERROR:")) {
+                        archive.addError(type, url, result);
+                    } else {
+                        ResponseBytes<GetObjectResponse> object = aws.downloadBytesFromS3(aws.keyFromPublicUrl(result));
+                        if ("gzip".equalsIgnoreCase(object.response().contentEncoding())) {
+                            // Already a gzip member - copy it as is
+                            archive.addCompressedEntry(type, url, object.asByteArray());
+                        } else {
+                            archive.addEntry(type, url, object.asByteArray());
+                        }
+                    }
+                });
+            }
+            aws.uploadToS3(archivePath, archivePath);
+            aws.uploadToS3(indexPath, indexPath);
+            return archivePath;
+        } catch (Exception e) {
+            System.err.println("Failed to build result archive for appId " + appId + ": " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            archiveFile.delete();
+            indexFile.delete();
+        }
     }
 
     private void handleTermination() {
         System.out.println("OutputHandler handling termination.");
         // wait for all tasks to finish
-        while (!processedParts.isEmpty() || !Manager.inputHandlerFinished() || Manager.hasPendingTasks()) {
+        while (!spills.isEmpty() || !Manager.inputHandlerFinished() || Manager.hasPendingTasks()) {
             getAndHandleMessage();
         }
 
+        finishers.shutdown();
+        try {
+            // The clients of the last jobs are waiting for their done messages
+            finishers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
         System.out.println("OutputHandler terminating.");
 
         // Delete resources
@@ -82,9 +355,21 @@ class OutputHandler implements Runnable {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        aws.deleteQueues();
-        aws.deleteBucket();
-        aws.terminateAllWorkers();
+        aws.deleteShardQueues();
+        if (Manager.ownsFleet()) {
+            // The other shards still need the workers, the shared queues and the bucket until they are done
+            while (aws.countOtherManagers() > 0) {
+                System.out.println("Waiting for the other Manager shards to terminate...");
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            aws.deleteSharedQueues();
+            aws.deleteBucket();
+            aws.terminateAllWorkers();
+        }
         aws.terminateInstance();
     }
 }
@@ -0,0 +1,84 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Builds the single-object result archive of a job: every processed result is written as its own
+// gzip member, one after the other. The whole file gunzips to all results concatenated, and each
+// entry can also be fetched alone with a ranged GET using the offsets in the index.
+//
+// Index format (tab separated, one line per entry):
+// <ANALYSIS_TYPE> <URL> <offset> <length> <status>
+// where status is "OK" or the worker's ERROR:<description>, and offset/length are -1 for errors.
+class ResultArchive implements AutoCloseable {
+
+    private final OutputStream archive;
+    private final BufferedWriter index;
+    private long offset = 0;
+
+    ResultArchive(File archiveFile, File indexFile) throws IOException {
+        archive = new FileOutputStream(archiveFile);
+        index = new BufferedWriter(new FileWriter(indexFile));
+    }
+
+    void addEntry(String type, String url, byte[] content) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(archive);
+        try (GZIPOutputStream member = new GZIPOutputStream(counter)) {
+            member.write(content);
+        }
+        index.write(type + "\t" + url + "\t" + offset + "\t" + counter.count + "\tOK");
+        index.newLine();
+        offset += counter.count;
+    }
+
+    // content is already a single gzip member (a result the worker uploaded compressed)
+    void addCompressedEntry(String type, String url, byte[] content) throws IOException {
+        archive.write(content);
+        index.write(type + "\t" + url + "\t" + offset + "\t" + content.length + "\tOK");
+        index.newLine();
+        offset += content.length;
+    }
+
+    void addError(String type, String url, String error) throws IOException {
+        index.write(type + "\t" + url + "\t-1\t-1\t" + error);
+        index.newLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            archive.close();
+        }
+    }
+
+    // Counts the bytes of one member and keeps the shared archive stream open when the member is closed
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
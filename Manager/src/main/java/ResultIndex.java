@@ -0,0 +1,65 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+// Merges the sentence postings workers upload next to each result (see SentenceIndex in the
+// Worker) into one inverted index of the job, so a client can find e.g. every sentence with
+// rel:nsubjpass/kill or attach:NP>PP and fetch only those sentences from the results.
+//
+// Index format (gzip compressed, tab separated):
+// file <n> <ANALYSIS_TYPE> <URL> <resultUrl> <plain|gzip>    (one line per indexed result)
+// <key> <n>@<offset>+<length> <n>@<offset>+<length> ...      (one line per key, keys sorted)
+// where n is the file number and offset/length the sentence's bytes in the uncompressed result.
+class ResultIndex {
+
+    private final List<String> files = new ArrayList<>();
+    private final Map<String, StringBuilder> postings = new TreeMap<>();
+
+    // filePostings is the worker's postings text of one result
+    void addFile(String type, String url, String resultUrl, boolean compressed, String filePostings) {
+        int file = files.size();
+        files.add("file\t" + file + "\t" + type + "\t" + url + "\t" + resultUrl + "\t" + (compressed ? "gzip" : "plain"));
+
+        String[] lines = filePostings.split("\n");
+        String[] pointers = lines[0].isEmpty() ? new String[0] : lines[0].split(" ");
+        for (int i = 1; i < lines.length; i++) {
+            int tab = lines[i].indexOf('\t');
+            if (tab <= 0) {
+                continue;
+            }
+            StringBuilder keyPostings = postings.computeIfAbsent(lines[i].substring(0, tab), key -> new StringBuilder());
+            for (String sentence : lines[i].substring(tab + 1).split(" ")) {
+                keyPostings.append(keyPostings.length() == 0 ? "" : " ")
+                        .append(file).append('@').append(pointers[Integer.parseInt(sentence)]);
+            }
+        }
+    }
+
+    int fileCount() {
+        return files.size();
+    }
+
+    void write(File indexFile) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(indexFile)), StandardCharsets.UTF_8))) {
+            for (String file : files) {
+                writer.write(file);
+                writer.newLine();
+            }
+            for (Map.Entry<String, StringBuilder> key : postings.entrySet()) {
+                writer.write(key.getKey());
+                writer.write('\t');
+                writer.write(key.getValue().toString());
+                writer.newLine();
+            }
+        }
+    }
+}
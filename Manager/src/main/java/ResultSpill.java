@@ -0,0 +1,80 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+// The results of one job, appended to local files as they arrive so the manager's memory
+// doesn't grow with the size of its jobs:
+// outputs/<appId>/output.html - the HTML summary, sealed with the closing tags and links when the job is done
+// outputs/<appId>/results.tsv - "<ANALYSIS_TYPE>\t<URL>\t<result>" per result, kept for jobs with an archive or index
+// A crash loses nothing - the journal holds the results and recovery writes them out again.
+class ResultSpill {
+
+    interface EntryHandler {
+        void accept(String type, String url, String result) throws Exception;
+    }
+
+    private final File htmlFile;
+    private final BufferedWriter html;
+    private final File entriesFile;
+    private final boolean keepEntries;
+    private BufferedWriter entries;
+
+    ResultSpill(String appId, boolean keepEntries) throws IOException {
+        htmlFile = new File("outputs/" + appId + "/output.html");
+        htmlFile.getParentFile().mkdirs();
+        html = new BufferedWriter(new FileWriter(htmlFile));
+        html.write("<html><body><h1>Analysis Results</h1><ul>");
+        html.newLine();
+        entriesFile = new File("outputs/" + appId + "/results.tsv");
+        this.keepEntries = keepEntries;
+        entries = keepEntries ? new BufferedWriter(new FileWriter(entriesFile)) : null;
+    }
+
+    synchronized void add(String type, String url, String result) throws IOException {
+        html.write("<li>" + type + ": " + url + " " + result + "</li>");
+        html.newLine();
+        if (entries != null) {
+            entries.write(type + "\t" + url + "\t" + result);
+            entries.newLine();
+        }
+    }
+
+    boolean hasEntries() {
+        return keepEntries;
+    }
+
+    // Streams the kept results back in arrival order
+    synchronized void forEachEntry(EntryHandler handler) throws Exception {
+        if (entries != null) {
+            entries.close();
+            entries = null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(entriesFile))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t", 3);
+                handler.accept(fields[0], fields[1], fields[2]);
+            }
+        }
+    }
+
+    // Closes the list and appends footer, e.g. links to the job's other outputs; returns the finished file
+    synchronized File seal(String footer) throws IOException {
+        html.write("</ul>");
+        html.write(footer);
+        html.write("</body></html>");
+        html.close();
+        if (entries != null) {
+            entries.close();
+            entries = null;
+        }
+        return htmlFile;
+    }
+
+    void delete() {
+        htmlFile.delete();
+        entriesFile.delete();
+    }
+}
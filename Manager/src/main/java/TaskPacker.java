@@ -0,0 +1,126 @@
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Packs several small tasks into one worker message so that the per-message SQS, S3 and temp file
+// overhead is paid once per pack instead of once per task. Sizes come from a HEAD request per
+// source; tasks of unknown or large size keep a message of their own. Probing runs on the intake
+// path, so a job gets PROBE_BUDGET_MILLIS for all its probes - sources not probed by then are unknown.
+//
+// Pack message format (newline separated):
+// pack <appId>
+// <task message>
+// <task message>
+// ...
+class TaskPacker {
+
+    static final String PACK_HEADER = "pack";
+
+    // Only sources up to this size are packed
+    private static final long SMALL_SOURCE_BYTES = 64 * 1024;
+    // Total source bytes per pack
+    private static final long PACK_BUDGET_BYTES = 256 * 1024;
+    private static final int MAX_PACK_TASKS = 10;
+    private static final int PROBE_THREADS = 8;
+    private static final int PROBE_TIMEOUT_MILLIS = 5000;
+    private static final long PROBE_BUDGET_MILLIS = 10_000;
+
+    private static final ExecutorService probePool = Executors.newFixedThreadPool(PROBE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "size-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Source sizes of a job's tasks (all types at once - the types usually share their URLs),
+    // -1 for the unknown ones
+    static Map<String, Long> probeSizes(List<String> tasks, String appId) {
+        Map<String, CompletableFuture<Long>> probes = new LinkedHashMap<>();
+        for (String task : tasks) {
+            String url = task.split(" ")[1];
+            probes.computeIfAbsent(url, key -> CompletableFuture.supplyAsync(() -> probeSize(key), probePool));
+        }
+
+        long deadline = System.currentTimeMillis() + PROBE_BUDGET_MILLIS;
+        Map<String, Long> sizes = new HashMap<>();
+        int unprobed = 0;
+        for (Map.Entry<String, CompletableFuture<Long>> probe : probes.entrySet()) {
+            try {
+                sizes.put(probe.getKey(), probe.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                // A probe that hasn't started yet won't run
+                probe.getValue().cancel(false);
+                sizes.put(probe.getKey(), -1L);
+                unprobed++;
+            } catch (InterruptedException | ExecutionException e) {
+                sizes.put(probe.getKey(), -1L);
+            }
+        }
+        if (unprobed > 0) {
+            System.out.println("Size probes out of time for appId " + appId + ": " + unprobed + " of " + probes.size() + " sources sent unpacked");
+        }
+        return sizes;
+    }
+
+    // tasks are single task messages ("<TYPE> <URL> <appId> [options]"); returns the worker messages
+    static List<String> pack(List<String> tasks, String appId, Map<String, Long> sizes) {
+        List<String> messages = new ArrayList<>();
+        List<String> pack = new ArrayList<>();
+        long packBytes = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            long size = sizes.getOrDefault(tasks.get(i).split(" ")[1], -1L);
+            if (size < 0 || size > SMALL_SOURCE_BYTES) {
+                messages.add(tasks.get(i));
+                continue;
+            }
+            if (pack.size() == MAX_PACK_TASKS || packBytes + size > PACK_BUDGET_BYTES) {
+                messages.add(toMessage(pack, appId));
+                pack.clear();
+                packBytes = 0;
+            }
+            pack.add(tasks.get(i));
+            packBytes += size;
+        }
+        if (!pack.isEmpty()) {
+            messages.add(toMessage(pack, appId));
+        }
+        return messages;
+    }
+
+    private static String toMessage(List<String> pack, String appId) {
+        if (pack.size() == 1) {
+            return pack.get(0);
+        }
+        return PACK_HEADER + " " + appId + "\n" + String.join("\n", pack);
+    }
+
+    // Content-Length of the source, or -1 if unknown
+    private static long probeSize(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return -1;
+            }
+            return connection.getContentLengthLong();
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
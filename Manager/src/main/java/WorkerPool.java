@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Sizes the worker fleet. Booting a worker (yum, Java, jar download, model loading) takes minutes,
+// so a warm pool of idle workers with their models loaded is started up front and kept between
+// jobs. Jobs run on the workers that are already up first - new ones are only started for the
+// part of a job they can't cover. Workers beyond the warm pool are terminated after the fleet
+// has been idle for the idle timeout.
+// Each analysis type has its own queue, so capacity is counted per type. When the fleet has room,
+// the shortfall of a type whose engine needs fewer models than the whole deployment (e.g. POS on
+// the tagger next to PCFG parsing) is covered by workers specialized to it, which only load those
+// models; the other types share general workers that serve every type, as do all types when the
+// fleet is short of room. The warm pool is general.
+// With several Manager shards the fleet is shared and run by shard 0; the other shards send their
+// scale-ups to it as "scale <TYPE>=<messages>,..." messages.
+class WorkerPool implements Runnable {
+
+    private static final AWS aws = AWS.getInstance();
+    static final int MAX_WORKERS = 8;
+    private static final long CHECK_INTERVAL_MILLIS = 30_000;
+
+    private static int warmPoolSize = 0;
+    // 0 keeps every worker until the manager terminates
+    private static long idleTimeoutMillis = 0;
+    private static long lastBusyMillis = System.currentTimeMillis();
+    // The one worker building the startup snapshot, and whether it is on S3 (see AWS.createWorkers)
+    private static String startupBuilder = null;
+    private static boolean startupBuilt = false;
+
+    static void configure(int warmPool, int idleTimeoutMinutes) {
+        warmPoolSize = Math.min(Math.max(0, warmPool), MAX_WORKERS);
+        idleTimeoutMillis = Math.max(0, idleTimeoutMinutes) * 60_000L;
+    }
+
+    static int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    // Starts the warm pool before the first job arrives
+    static synchronized void prewarm() {
+        int currentWorkers = WorkerRegistry.capacity();
+        if (currentWorkers < warmPoolSize) {
+            System.out.println("Pre-warming " + (warmPoolSize - currentWorkers) + " workers");
+            launchGeneral(warmPoolSize - currentWorkers);
+        }
+    }
+
+    // Makes sure each analysis type has a worker for every n of the new job's messages of that
+    // type, counting registered and booting workers first
+    static synchronized void scaleUp(Map<String, Integer> messageCounts) {
+        if (!Manager.ownsFleet()) {
+            requestScaleUp(messageCounts);
+            return;
+        }
+        lastBusyMillis = System.currentTimeMillis();
+        int n = Manager.getN();
+        Map<String, Integer> shortfalls = new LinkedHashMap<>();
+        int largestShortfall = 0;
+        // General workers cover the types specializing doesn't help, and count for the others too
+        int generalShortfall = 0;
+        for (Map.Entry<String, Integer> typeMessages : messageCounts.entrySet()) {
+            int workersNeeded = (typeMessages.getValue() + n - 1) / n;
+            int shortfall = Math.max(0, workersNeeded - WorkerRegistry.capacity(typeMessages.getKey()));
+            if (shortfall > 0) {
+                shortfalls.put(typeMessages.getKey(), shortfall);
+                largestShortfall = Math.max(largestShortfall, shortfall);
+                if (!Engines.specializationSaves(typeMessages.getKey())) {
+                    generalShortfall = Math.max(generalShortfall, shortfall);
+                }
+            }
+        }
+        Map<String, Integer> specializedShortfalls = new LinkedHashMap<>();
+        int totalShortfall = generalShortfall;
+        for (Map.Entry<String, Integer> shortfall : shortfalls.entrySet()) {
+            int remaining = shortfall.getValue() - generalShortfall;
+            if (remaining > 0 && Engines.specializationSaves(shortfall.getKey())) {
+                specializedShortfalls.put(shortfall.getKey(), remaining);
+                totalShortfall += remaining;
+            }
+        }
+
+        int freeSlots = MAX_WORKERS - WorkerRegistry.capacity();
+        if (totalShortfall == 0 || freeSlots <= 0) {
+            System.out.println("Placing job on " + WorkerRegistry.capacity() + " workers (" + WorkerRegistry.idleWorkers().size() + " idle)");
+        } else if (totalShortfall <= freeSlots) {
+            launchGeneral(generalShortfall);
+            for (Map.Entry<String, Integer> shortfall : specializedShortfalls.entrySet()) {
+                launchSpecialized(shortfall.getKey(), shortfall.getValue());
+            }
+        } else {
+            // Not enough room for a pool per type - general workers cover every type's shortfall at once
+            launchGeneral(Math.min(freeSlots, largestShortfall));
+        }
+
+        int currentWorkers = WorkerRegistry.capacity();
+        if (currentWorkers < warmPoolSize) {
+            launchGeneral(warmPoolSize - currentWorkers);
+        }
+    }
+
+    private static void requestScaleUp(Map<String, Integer> messageCounts) {
+        if (messageCounts.isEmpty()) {
+            return;
+        }
+        StringBuilder request = new StringBuilder("scale ");
+        for (Map.Entry<String, Integer> typeMessages : messageCounts.entrySet()) {
+            if (request.length() > "scale ".length()) {
+                request.append(",");
+            }
+            request.append(typeMessages.getKey()).append("=").append(typeMessages.getValue());
+        }
+        try {
+            aws.sendMessageToFleetOwner(request.toString());
+        } catch (Exception e) {
+            // Shard 0 is gone (terminating) - the workers that are up still serve the job
+            System.err.println("Failed to send scale-up to shard 0: " + e.getMessage());
+        }
+    }
+
+    // A type with queued work but no worker serving it would never finish. Start a worker for it,
+    // making room by replacing an idle worker of other types when the fleet is full.
+    static synchronized void rebalance() {
+        for (String type : Manager.ANALYSIS_TYPES) {
+            if (WorkerRegistry.capacity(type) > 0) {
+                continue;
+            }
+            int[] depth = aws.getWorkerQueueDepth(type);
+            if (depth[0] + depth[1] == 0) {
+                continue;
+            }
+            if (WorkerRegistry.capacity() >= MAX_WORKERS) {
+                List<String> idle = WorkerRegistry.idleWorkersWithout(type);
+                if (idle.isEmpty()) {
+                    continue;
+                }
+                List<String> toTerminate = idle.subList(0, 1);
+                System.out.println("No worker serves " + type + ", replacing idle worker " + toTerminate.get(0));
+                WorkerRegistry.forget(toTerminate);
+                aws.terminateWorkers(toTerminate);
+            }
+            if (Engines.specializationSaves(type)) {
+                launchSpecialized(type, 1);
+            } else {
+                launchGeneral(1);
+            }
+        }
+    }
+
+    // Work of other shards' jobs that is still queued or in progress
+    private static boolean hasQueuedWork() {
+        for (String type : Manager.ANALYSIS_TYPES) {
+            int[] depth = aws.getWorkerQueueDepth(type);
+            if (depth[0] + depth[1] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void launchSpecialized(String type, int count) {
+        System.out.println("Starting " + count + " " + type + " workers");
+        WorkerRegistry.launched(createWorkers(count, withTypes(type)), Collections.singletonList(type));
+    }
+
+    private static List<String> withTypes(String type) {
+        List<String> args = new ArrayList<>(Manager.getWorkerArgs());
+        args.add("types=" + type);
+        return args;
+    }
+
+    private static void launchGeneral(int count) {
+        WorkerRegistry.launched(createWorkers(count, Manager.getWorkerArgs()), Manager.ANALYSIS_TYPES);
+    }
+
+    // Asks one of the new workers to build the startup snapshot while it is missing and no live
+    // worker is building it, so a batch of workers doesn't build and upload it all at once
+    private static List<String> createWorkers(int count, List<String> args) {
+        List<String> instanceIds = new ArrayList<>();
+        if (count > 0 && needsStartupBuilder()) {
+            instanceIds.addAll(aws.createWorkers(1, args, true));
+            startupBuilder = instanceIds.get(0);
+            count--;
+        }
+        instanceIds.addAll(aws.createWorkers(count, args, false));
+        return instanceIds;
+    }
+
+    private static boolean needsStartupBuilder() {
+        if (!startupBuilt) {
+            try {
+                startupBuilt = aws.existsInS3(AWS.STARTUP_ARCHIVE_KEY);
+            } catch (Exception e) {
+                // Start the workers without it - they load the packaged model
+                System.err.println("Failed to check the startup snapshot: " + e.getMessage());
+                return false;
+            }
+        }
+        return !startupBuilt && (startupBuilder == null || !WorkerRegistry.isKnown(startupBuilder));
+    }
+
+    // Terminates idle workers beyond the warm pool once nothing has been in progress for the idle timeout
+    static synchronized void scaleIn() {
+        long now = System.currentTimeMillis();
+        if (Manager.hasPendingTasks() || hasQueuedWork()) {
+            lastBusyMillis = now;
+            return;
+        }
+        if (idleTimeoutMillis == 0 || now - lastBusyMillis < idleTimeoutMillis) {
+            return;
+        }
+        int surplus = WorkerRegistry.capacity() - warmPoolSize;
+        List<String> idle = WorkerRegistry.idleWorkers();
+        if (surplus > 0 && !idle.isEmpty()) {
+            List<String> toTerminate = idle.subList(0, Math.min(surplus, idle.size()));
+            System.out.println("Workers idle for " + (now - lastBusyMillis) / 60_000 + " minutes, scaling in to the warm pool of " + warmPoolSize);
+            WorkerRegistry.forget(toTerminate);
+            aws.terminateWorkers(toTerminate);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Manager.isTerminated()) {
+            try {
+                // Sleep first so the registry has heard from the running workers (e.g. after a Manager restart)
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+                rebalance();
+                scaleIn();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // Keep managing the pool - a failed EC2 call is retried on the next check
+                System.err.println("Worker pool check failed: " + e.getMessage());
+            }
+        }
+    }
+}
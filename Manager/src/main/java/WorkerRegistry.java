@@ -0,0 +1,206 @@
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Live view of the worker fleet, fed by the heartbeats workers send every 15 seconds to
+// WorkerHeartbeatQueue: "heartbeat <instanceId> <state> <activeTasks> <freeHeapMB> <sentencesPerSecond> <tasksCompleted> <types>"
+// where state is loading, idle, busy or draining and types are the analysis types the worker serves, e.g.
+// "POS,DEPENDENCY". Workers that were launched but haven't reported yet
+// count as capacity until the boot timeout; registered workers that stop reporting are
+// considered dead, dropped and terminated so scaling can replace them. Draining workers are
+// shutting down (termination, scale-in or a spot interruption) and no longer count as capacity.
+class WorkerRegistry implements Runnable {
+
+    private static final AWS aws = AWS.getInstance();
+    private static final long DEAD_AFTER_MILLIS = 3 * 60_000;
+    // yum, the Java install, the jar download and the first worker's warmup
+    private static final long BOOT_TIMEOUT_MILLIS = 20 * 60_000;
+    private static final String DRAINING = "draining";
+
+    private static final Map<String, WorkerStatus> workers = new ConcurrentHashMap<>();
+    // Launched instances that haven't sent a heartbeat yet
+    private static final Map<String, Launch> launching = new ConcurrentHashMap<>();
+
+    private static class Launch {
+        final long time;
+        final List<String> types;
+
+        Launch(long time, List<String> types) {
+            this.time = time;
+            this.types = types;
+        }
+    }
+
+    static class WorkerStatus {
+        final String instanceId;
+        final String state;
+        final int activeTasks;
+        final long freeHeapMb;
+        final double sentencesPerSecond;
+        final long tasksCompleted;
+        final List<String> types;
+        final long lastSeen;
+
+        WorkerStatus(String instanceId, String state, int activeTasks, long freeHeapMb,
+                     double sentencesPerSecond, long tasksCompleted, List<String> types, long lastSeen) {
+            this.instanceId = instanceId;
+            this.state = state;
+            this.activeTasks = activeTasks;
+            this.freeHeapMb = freeHeapMb;
+            this.sentencesPerSecond = sentencesPerSecond;
+            this.tasksCompleted = tasksCompleted;
+            this.types = types;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    // types are the analysis types the launched workers were started for
+    static void launched(List<String> instanceIds, List<String> types) {
+        long now = System.currentTimeMillis();
+        for (String instanceId : instanceIds) {
+            launching.put(instanceId, new Launch(now, types));
+        }
+    }
+
+    // Registered workers plus the ones still booting
+    static int capacity() {
+        int count = launching.size();
+        for (WorkerStatus worker : workers.values()) {
+            if (!worker.state.equals(DRAINING)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Registered and booting workers that serve the given analysis type
+    static int capacity(String type) {
+        int count = 0;
+        for (WorkerStatus worker : workers.values()) {
+            if (worker.types.contains(type) && !worker.state.equals(DRAINING)) {
+                count++;
+            }
+        }
+        for (Launch launch : launching.values()) {
+            if (launch.types.contains(type)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static List<String> idleWorkers() {
+        List<String> idle = new ArrayList<>();
+        for (WorkerStatus worker : workers.values()) {
+            if (worker.state.equals("idle")) {
+                idle.add(worker.instanceId);
+            }
+        }
+        return idle;
+    }
+
+    // Idle workers that don't serve the given analysis type
+    static List<String> idleWorkersWithout(String type) {
+        List<String> idle = new ArrayList<>();
+        for (WorkerStatus worker : workers.values()) {
+            if (worker.state.equals("idle") && !worker.types.contains(type)) {
+                idle.add(worker.instanceId);
+            }
+        }
+        return idle;
+    }
+
+    static Collection<WorkerStatus> getWorkers() {
+        return workers.values();
+    }
+
+    // Registered or still booting
+    static boolean isKnown(String instanceId) {
+        return workers.containsKey(instanceId) || launching.containsKey(instanceId);
+    }
+
+    static int launchingCount() {
+        return launching.size();
+    }
+
+    static void forget(List<String> instanceIds) {
+        for (String instanceId : instanceIds) {
+            workers.remove(instanceId);
+            launching.remove(instanceId);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Manager.isTerminated()) {
+            try {
+                for (Message message : aws.receiveHeartbeats()) {
+                    handleHeartbeat(message.body());
+                    aws.deleteHeartbeat(message);
+                }
+                expire();
+            } catch (Exception e) {
+                // Keep listening - a missed poll only delays the registry
+                System.err.println("Worker registry poll failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void handleHeartbeat(String body) {
+        String[] parts = body.split(" ");
+        if (parts.length < 7 || !parts[0].equals("heartbeat")) {
+            System.err.println("Invalid heartbeat: " + body);
+            return;
+        }
+        String instanceId = parts[1];
+        try {
+            // Workers that don't report their types serve all of them
+            List<String> types = parts.length > 7 ? Arrays.asList(parts[7].split(",")) : Manager.ANALYSIS_TYPES;
+            WorkerStatus status = new WorkerStatus(instanceId, parts[2], Integer.parseInt(parts[3]),
+                    Long.parseLong(parts[4]), Double.parseDouble(parts[5]), Long.parseLong(parts[6]),
+                    types, System.currentTimeMillis());
+            if (launching.remove(instanceId) != null || !workers.containsKey(instanceId)) {
+                System.out.println("Worker registered: " + instanceId + " (" + status.state + ", " + String.join(",", types) + ")");
+            }
+            WorkerStatus previous = workers.put(instanceId, status);
+            if (status.state.equals(DRAINING) && (previous == null || !previous.state.equals(DRAINING))) {
+                System.out.println("Worker draining: " + instanceId);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid heartbeat: " + body);
+        }
+    }
+
+    private static void expire() {
+        long now = System.currentTimeMillis();
+        List<String> dead = new ArrayList<>();
+        List<String> drained = new ArrayList<>();
+        for (WorkerStatus worker : workers.values()) {
+            if (now - worker.lastSeen > DEAD_AFTER_MILLIS) {
+                (worker.state.equals(DRAINING) ? drained : dead).add(worker.instanceId);
+            }
+        }
+        if (!drained.isEmpty()) {
+            // Gone after handing back their work - expected, not lost
+            System.out.println("Drained workers gone: " + drained);
+            forget(drained);
+            aws.terminateWorkers(drained);
+        }
+        for (Map.Entry<String, Launch> launch : launching.entrySet()) {
+            if (now - launch.getValue().time > BOOT_TIMEOUT_MILLIS) {
+                dead.add(launch.getKey());
+            }
+        }
+        if (!dead.isEmpty()) {
+            System.err.println("Workers stopped reporting, terminating: " + dead);
+            forget(dead);
+            Metrics.add("manager_workers_lost_total", dead.size());
+            aws.terminateWorkers(dead);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Recovery guarantees of the job journal, on a local journal without S3 backup. Every recover()
+// call stands for a Manager restart.
+class JournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replayIgnoresRecordCutShortByCrash() throws IOException {
+        Journal.recover(directory.toString(), null);
+        Journal.jobAccepted("app", 3, "", "inputs/app/input.txt");
+        assertTrue(Journal.result("app", 0, result(0)));
+        // The crash hit while the next result was being written
+        Files.write(directory.resolve("journal.log"), ("result app 1 " + result(1)).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        List<Journal.JobRecord> jobs = Journal.recover(directory.toString(), null);
+
+        assertEquals(1, jobs.size());
+        Journal.JobRecord job = jobs.get(0);
+        assertEquals(1, job.resultCount());
+        assertTrue(job.hasResult(0));
+        assertFalse(job.hasResult(1));
+        assertEquals(Collections.singletonList("app 0 " + result(0)), results());
+        // The task whose result was lost is answered again
+        assertTrue(Journal.result("app", 1, result(1)));
+    }
+
+    @Test
+    void compactionKeepsResultsOfUnfinishedJobsOnly() throws IOException {
+        Journal.recover(directory.toString(), null);
+        Journal.jobAccepted("finished", 1, "", "inputs/finished/input.txt");
+        Journal.result("finished", 0, result(0));
+        Journal.done("finished");
+        int tasks = 6000;
+        Journal.jobAccepted("big", tasks + 1, "archive", "inputs/big/input.txt");
+        Journal.dispatched("big");
+        assertTrue(Journal.result("big", null, "POS http://example.com/untraced.txt https://bucket/untraced.txt"));
+        // Past 5000 records the log is compacted into the snapshot
+        for (int task = 0; task < tasks; task++) {
+            assertTrue(Journal.result("big", task, result(task)));
+        }
+
+        List<String> snapshot = Files.readAllLines(directory.resolve("snapshot"));
+        assertEquals("generation 2", snapshot.get(0));
+        assertTrue(snapshot.stream().noneMatch(record -> record.contains("finished")));
+        assertEquals("generation 2", Files.readAllLines(directory.resolve("journal.log")).get(0));
+
+        List<Journal.JobRecord> jobs = Journal.recover(directory.toString(), null);
+
+        assertEquals(1, jobs.size());
+        Journal.JobRecord job = jobs.get(0);
+        assertEquals("big", job.appId);
+        assertEquals("archive", job.options);
+        assertTrue(job.dispatched);
+        assertEquals(tasks + 1, job.resultCount());
+        assertEquals(0, job.remainingTasks());
+        List<String> recovered = results();
+        assertEquals(tasks + 1, recovered.size());
+        Set<String> results = new HashSet<>(recovered);
+        assertTrue(results.contains("big -1 POS http://example.com/untraced.txt https://bucket/untraced.txt"));
+        for (int task = 0; task < tasks; task++) {
+            assertTrue(results.contains("big " + task + " " + result(task)));
+        }
+    }
+
+    @Test
+    void recoveredCompleteJobIsFinishedOnce() throws IOException {
+        Journal.recover(directory.toString(), null);
+        Journal.jobAccepted("app", 2, "", "inputs/app/input.txt");
+        Journal.dispatched("app");
+        Journal.result("app", 0, result(0));
+        Journal.result("app", 1, result(1));
+        // The crash hit before the job was finished
+
+        List<Journal.JobRecord> jobs = Journal.recover(directory.toString(), null);
+
+        assertEquals(1, jobs.size());
+        assertEquals(0, jobs.get(0).remainingTasks());
+        assertEquals(2, results().size());
+        // Redelivered results of the finished job don't count
+        assertFalse(Journal.result("app", 1, result(1)));
+        assertFalse(Journal.result("app", null, result(2)));
+        Journal.done("app");
+        assertFalse(Journal.hasJob("app"));
+
+        assertTrue(Journal.recover(directory.toString(), null).isEmpty());
+        assertFalse(Journal.hasJob("app"));
+    }
+
+    private static String result(int task) {
+        return "POS http://example.com/" + task + ".txt https://bucket/" + task + ".txt";
+    }
+
+    private static List<String> results() throws IOException {
+        List<String> results = new ArrayList<>();
+        Journal.forEachResult((appId, task, result) -> results.add(appId + " " + task + " " + result));
+        return results;
+    }
+}
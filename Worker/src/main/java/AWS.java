@@ -1,11 +1,16 @@
 import java.io.File;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
@@ -21,12 +26,18 @@ import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
 
@@ -37,11 +48,19 @@ public class AWS {
 
     private static final String WORKER_TO_MANAGER_TAG = "WorkerToManagerQueue";
     private static final String MANAGER_TO_WORKER_TAG = "ManagerToWorkerQueue";
+    private static final String DEAD_LETTER_TAG = "ManagerToWorkerDLQ";
+    private static final String HEARTBEAT_TAG = "WorkerHeartbeatQueue";
+    private static final String METADATA_URL = "http://169.254.169.254/latest/";
     private static final String WORKER_TAG = "Worker";
+    public static final String ATTEMPT_ATTRIBUTE = "attempt";
     private static final String S3_BUCKET_TAG = "s3bucket";
 
-    private String WORKER_TO_MANAGER_QUEUE_URL;
-    private String MANAGER_TO_WORKER_QUEUE_URL;
+    // Result queue of every Manager shard, from the "WorkerToManagerQueue-<shard>" tags
+    private final Map<Integer, String> workerToManagerQueueUrls = new ConcurrentHashMap<>();
+    // Work queue per analysis type, from the "ManagerToWorkerQueue-<TYPE>" tags
+    private final Map<String, String> managerToWorkerQueueUrls = new ConcurrentHashMap<>();
+    private String DEAD_LETTER_QUEUE_URL;
+    private String HEARTBEAT_QUEUE_URL;
     private String S3_BUCKET_NAME;
 
     public static Region region = Region.US_EAST_1;
@@ -78,53 +97,150 @@ public class AWS {
         for (Reservation reservation : response.reservations()) {
             for (Instance ec2instance : reservation.instances()) {
                 for (Tag tag : ec2instance.tags()) {
-                    if (tag.key().equals(WORKER_TO_MANAGER_TAG)) {
-                        WORKER_TO_MANAGER_QUEUE_URL = tag.value();
-                    } else if (tag.key().equals(MANAGER_TO_WORKER_TAG)) {
-                        MANAGER_TO_WORKER_QUEUE_URL = tag.value();
+                    if (tag.key().startsWith(WORKER_TO_MANAGER_TAG + "-")) {
+                        workerToManagerQueueUrls.put(Integer.parseInt(tag.key().substring(WORKER_TO_MANAGER_TAG.length() + 1)), tag.value());
+                    } else if (tag.key().startsWith(MANAGER_TO_WORKER_TAG + "-")) {
+                        managerToWorkerQueueUrls.put(tag.key().substring(MANAGER_TO_WORKER_TAG.length() + 1), tag.value());
+                    } else if (tag.key().equals(DEAD_LETTER_TAG)) {
+                        DEAD_LETTER_QUEUE_URL = tag.value();
+                    } else if (tag.key().equals(HEARTBEAT_TAG)) {
+                        HEARTBEAT_QUEUE_URL = tag.value();
                     } else if (tag.key().equals(S3_BUCKET_TAG)) {
                         S3_BUCKET_NAME = tag.value();
                     }
                 }
                 // Only need tags from one instance
-                if (WORKER_TO_MANAGER_QUEUE_URL != null && MANAGER_TO_WORKER_QUEUE_URL != null && S3_BUCKET_NAME != null) {
+                if (!workerToManagerQueueUrls.isEmpty() && !managerToWorkerQueueUrls.isEmpty() && S3_BUCKET_NAME != null) {
                     return;
                 }
             }
         }
     }
 
-    public List<Message> receiveMessagesFromManager() {
+    // Long polls the work queue of one analysis type for up to waitSeconds
+    public List<Message> receiveMessagesFromManager(String analysisType, int waitSeconds) {
         ReceiveMessageRequest receiveRequest = ReceiveMessageRequest.builder()
-                .queueUrl(MANAGER_TO_WORKER_QUEUE_URL)
+                .queueUrl(managerToWorkerQueueUrls.get(analysisType))
                 .maxNumberOfMessages(1)
-                .waitTimeSeconds(20)
+                .waitTimeSeconds(waitSeconds)
                 .visibilityTimeout(2700)
+                .messageAttributeNames(ATTEMPT_ATTRIBUTE)
+                .attributeNamesWithStrings(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT.toString())
                 .build();
         return sqs.receiveMessage(receiveRequest).messages();
     }
 
-    public void deleteMessageFromManager(Message message) {
+    public void deleteMessageFromManager(String analysisType, Message message) {
         DeleteMessageRequest deleteRequest = DeleteMessageRequest.builder()
-                .queueUrl(MANAGER_TO_WORKER_QUEUE_URL)
+                .queueUrl(managerToWorkerQueueUrls.get(analysisType))
                 .receiptHandle(message.receiptHandle())
                 .build();
         sqs.deleteMessage(deleteRequest);
     }
 
-    public void sendMessageToManager(String messageBody) {
+    // Makes a message this worker won't finish visible again right away, instead of at the end of its lease
+    public void releaseMessageToManager(String analysisType, Message message) {
+        sqs.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
+                .queueUrl(managerToWorkerQueueUrls.get(analysisType))
+                .receiptHandle(message.receiptHandle())
+                .visibilityTimeout(0)
+                .build());
+    }
+
+    // Results go to the Manager shard that owns the job
+    public void sendMessageToManager(int shard, String messageBody) {
+        sqs.sendMessage(SendMessageRequest.builder()
+                .queueUrl(workerToManagerQueueUrls.get(shard))
+                .messageBody(messageBody)
+                .build());
+    }
+
+    public void sendHeartbeat(String messageBody) {
+        if (HEARTBEAT_QUEUE_URL == null) {
+            return;
+        }
         sqs.sendMessage(SendMessageRequest.builder()
-                .queueUrl(WORKER_TO_MANAGER_QUEUE_URL)
+                .queueUrl(HEARTBEAT_QUEUE_URL)
                 .messageBody(messageBody)
                 .build());
     }
 
+    // This instance's id from the instance metadata service (IMDSv2)
+    public String getInstanceId() throws Exception {
+        HttpResponse<String> response = getMetadata("meta-data/instance-id");
+        if (response.statusCode() != 200) {
+            throw new Exception("Instance metadata returned HTTP " + response.statusCode());
+        }
+        return response.body().trim();
+    }
+
+    // True once EC2 has scheduled this spot instance to be stopped or terminated (about two minutes ahead)
+    public boolean isSpotInterruptionPending() throws Exception {
+        return getMetadata("meta-data/spot/instance-action").statusCode() == 200;
+    }
+
+    private HttpResponse<String> getMetadata(String path) throws Exception {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        String token = client.send(HttpRequest.newBuilder(URI.create(METADATA_URL + "api/token"))
+                        .header("X-aws-ec2-metadata-token-ttl-seconds", "21600")
+                        .PUT(HttpRequest.BodyPublishers.noBody())
+                        .build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        return client.send(HttpRequest.newBuilder(URI.create(METADATA_URL + path))
+                        .header("X-aws-ec2-metadata-token", token)
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    // Puts a task (or pack) back on the work queue of its analysis type, hidden for delaySeconds (at most 900)
+    public void requeueTaskToManagerQueue(String analysisType, String task, int attempt, int delaySeconds) {
+        sqs.sendMessage(SendMessageRequest.builder()
+                .queueUrl(managerToWorkerQueueUrls.get(analysisType))
+                .messageBody(task)
+                .delaySeconds(delaySeconds)
+                .messageAttributes(Map.of(ATTEMPT_ATTRIBUTE, numberAttribute(attempt)))
+                .build());
+    }
+
+    // Parks a task that keeps failing for inspection - nothing consumes the dead-letter queue
+    public void sendToDeadLetterQueue(String task, int attempts, String reason) {
+        if (DEAD_LETTER_QUEUE_URL == null) {
+            System.err.println("No dead-letter queue configured, dropping: " + task);
+            return;
+        }
+        Map<String, MessageAttributeValue> attributes = new HashMap<>();
+        attributes.put(ATTEMPT_ATTRIBUTE, numberAttribute(attempts));
+        attributes.put("reason", MessageAttributeValue.builder().dataType("String").stringValue(reason).build());
+        sqs.sendMessage(SendMessageRequest.builder()
+                .queueUrl(DEAD_LETTER_QUEUE_URL)
+                .messageBody(task)
+                .messageAttributes(attributes)
+                .build());
+    }
+
+    private static MessageAttributeValue numberAttribute(int value) {
+        return MessageAttributeValue.builder().dataType("Number").stringValue(Integer.toString(value)).build();
+    }
+
     public String uploadToS3(String key, String filePath) throws UnsupportedEncodingException {
         s3.putObject(PutObjectRequest.builder().bucket(S3_BUCKET_NAME).acl(ObjectCannedACL.PUBLIC_READ).key(key).build(),
                 RequestBody.fromFile(new File(filePath)));
         return "https://" + S3_BUCKET_NAME + ".s3.amazonaws.com/" + URLEncoder.encode(key, StandardCharsets.UTF_8.toString());
     }
 
+    // Uploads an already encoded file (e.g. "gzip") as a public text object with the matching Content-Encoding
+    public String uploadToS3(String key, String filePath, String contentEncoding) throws UnsupportedEncodingException {
+        s3.putObject(PutObjectRequest.builder()
+                        .bucket(S3_BUCKET_NAME)
+                        .acl(ObjectCannedACL.PUBLIC_READ)
+                        .key(key)
+                        .contentType("text/plain; charset=utf-8")
+                        .contentEncoding(contentEncoding)
+                        .build(),
+                RequestBody.fromFile(new File(filePath)));
+        return "https://" + S3_BUCKET_NAME + ".s3.amazonaws.com/" + URLEncoder.encode(key, StandardCharsets.UTF_8.toString());
+    }
+
     public String uploadStringToS3(String key, String content) throws UnsupportedEncodingException {
         s3.putObject(
             PutObjectRequest.builder()
@@ -0,0 +1,14 @@
+import edu.stanford.nlp.ling.HasWord;
+
+import java.util.List;
+
+// One analysis backend for one AnalysisType. Implementations must be safe to call from
+// several parse threads at once.
+public interface AnalysisEngine {
+
+    // Returns the output line for one tokenized sentence
+    String analyze(List<HasWord> sentence);
+
+    // Estimated working memory of a single analyze() call, used for parse admission
+    long estimateBytes(int tokens);
+}
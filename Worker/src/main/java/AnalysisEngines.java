@@ -0,0 +1,116 @@
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.parser.nndep.DependencyParser;
+import edu.stanford.nlp.parser.shiftreduce.ShiftReduceParser;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+// Creates analysis engines by name and loads each model at most once, on first use,
+// so a worker only pays for the backends it is actually asked to run.
+class AnalysisEngines {
+
+    static final String PCFG = "pcfg";
+    static final String SHIFT_REDUCE = "sr";
+    static final String NEURAL_DEPENDENCY = "nndep";
+    static final String TAGGER = "tagger";
+
+    private static final String TAGGER_MODEL = "edu/stanford/nlp/models/pos-tagger/english-left3words/english-left3words-distsim.tagger";
+
+    private final Map<TextAnalyzer.AnalysisType, String> defaults = new EnumMap<>(TextAnalyzer.AnalysisType.class);
+    private final Map<String, AnalysisEngine> engines = new HashMap<>();
+
+    private LexicalizedParser pcfgParser;
+    private MaxentTagger tagger;
+    private ShiftReduceParser shiftReduceParser;
+    private DependencyParser dependencyParser;
+
+    AnalysisEngines(Map<TextAnalyzer.AnalysisType, String> deploymentDefaults) {
+        for (TextAnalyzer.AnalysisType type : TextAnalyzer.AnalysisType.values()) {
+            defaults.put(type, PCFG);
+        }
+        defaults.putAll(deploymentDefaults);
+    }
+
+    String defaultEngine(TextAnalyzer.AnalysisType type) {
+        return defaults.get(type);
+    }
+
+    // engineName may be null for the deployment default of the type
+    synchronized AnalysisEngine get(String engineName, TextAnalyzer.AnalysisType type) {
+        String name = engineName == null ? defaults.get(type) : engineName;
+        String key = name + "/" + type;
+        AnalysisEngine engine = engines.get(key);
+        if (engine == null) {
+            engine = create(name, type);
+            engines.put(key, engine);
+        }
+        return engine;
+    }
+
+    private AnalysisEngine create(String name, TextAnalyzer.AnalysisType type) {
+        switch (name) {
+            case PCFG:
+                return new PcfgEngine(pcfgParser(), type);
+            case SHIFT_REDUCE:
+                return new ShiftReduceEngine(tagger(), shiftReduceParser(), type);
+            case NEURAL_DEPENDENCY:
+                if (type != TextAnalyzer.AnalysisType.DEPENDENCY) {
+                    throw new IllegalArgumentException("Engine nndep only supports DEPENDENCY");
+                }
+                return new NeuralDependencyEngine(tagger(), dependencyParser());
+            case TAGGER:
+                if (type != TextAnalyzer.AnalysisType.POS) {
+                    throw new IllegalArgumentException("Engine tagger only supports POS");
+                }
+                return new TaggerEngine(tagger());
+            default:
+                throw new IllegalArgumentException("Unknown analysis engine: " + name);
+        }
+    }
+
+    private LexicalizedParser pcfgParser() {
+        if (pcfgParser == null) {
+            if (Files.isRegularFile(Paths.get(PcfgEngine.SNAPSHOT))) {
+                System.out.println("Loading PCFG model snapshot...");
+                try {
+                    pcfgParser = LexicalizedParser.loadModel(PcfgEngine.SNAPSHOT);
+                } catch (RuntimeException e) {
+                    System.err.println("Unreadable PCFG model snapshot, loading the packaged model: " + e.getMessage());
+                }
+            }
+            if (pcfgParser == null) {
+                System.out.println("Loading PCFG model...");
+                pcfgParser = LexicalizedParser.loadModel(PcfgEngine.MODEL);
+            }
+        }
+        return pcfgParser;
+    }
+
+    private MaxentTagger tagger() {
+        if (tagger == null) {
+            System.out.println("Loading POS tagger model...");
+            tagger = new MaxentTagger(TAGGER_MODEL);
+        }
+        return tagger;
+    }
+
+    private ShiftReduceParser shiftReduceParser() {
+        if (shiftReduceParser == null) {
+            System.out.println("Loading shift-reduce model...");
+            shiftReduceParser = ShiftReduceParser.loadModel(ShiftReduceEngine.MODEL);
+        }
+        return shiftReduceParser;
+    }
+
+    private DependencyParser dependencyParser() {
+        if (dependencyParser == null) {
+            System.out.println("Loading neural dependency model...");
+            dependencyParser = DependencyParser.loadFromModelFile(NeuralDependencyEngine.MODEL);
+        }
+        return dependencyParser;
+    }
+}
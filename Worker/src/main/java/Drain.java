@@ -0,0 +1,112 @@
+import software.amazon.awssdk.services.sqs.model.Message;
+
+// Lets a worker leave without stranding its message for the rest of the 45 minute lease.
+// On SIGTERM (the instance shutting down after terminateAllWorkers or a scale-in) or a spot
+// interruption notice the worker stops receiving, gets GRACE_SECONDS to finish the message in
+// hand, and a message it couldn't finish is made visible again at once for another worker.
+// A pack is checkpointed between its tasks instead: the finished tasks are answered and the
+// rest go back to the queue as a smaller pack (see Worker.processMessage).
+class Drain {
+
+    static final long GRACE_SECONDS = 60;
+    private static final long SPOT_CHECK_MILLIS = 5000;
+
+    private final AWS aws;
+    private final Heartbeat heartbeat;
+    private volatile boolean draining = false;
+    // The message being processed, until it is committed (answered) or released
+    private Message inFlightMessage;
+    private String inFlightType;
+    private boolean busy = false;
+
+    Drain(AWS aws, Heartbeat heartbeat) {
+        this.aws = aws;
+        this.heartbeat = heartbeat;
+    }
+
+    void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "drain"));
+
+        Thread spotWatcher = new Thread(() -> {
+            while (!draining) {
+                try {
+                    Thread.sleep(SPOT_CHECK_MILLIS);
+                    if (aws.isSpotInterruptionPending()) {
+                        System.out.println("Spot interruption notice received.");
+                        drain();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // Not a spot instance or the metadata service is unavailable - keep checking
+                }
+            }
+        }, "spot-watcher");
+        spotWatcher.setDaemon(true);
+        spotWatcher.start();
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    // Called with each received message; false if the worker is draining and the message was released
+    synchronized boolean begin(String type, Message message) {
+        if (draining) {
+            release(type, message);
+            return false;
+        }
+        inFlightType = type;
+        inFlightMessage = message;
+        busy = true;
+        return true;
+    }
+
+    // Called before answering the message; false if it was already released to another worker
+    synchronized boolean commit() {
+        if (inFlightMessage == null) {
+            System.err.println("Message was released during the drain, dropping its results.");
+            return false;
+        }
+        inFlightMessage = null;
+        return true;
+    }
+
+    synchronized void end() {
+        inFlightMessage = null;
+        busy = false;
+        notifyAll();
+    }
+
+    synchronized void drain() {
+        if (!draining) {
+            System.out.println("Draining worker, " + GRACE_SECONDS + "s to finish the current message.");
+            draining = true;
+            heartbeat.draining();
+            Metrics.increment("worker_drains_total");
+        }
+        long deadline = System.currentTimeMillis() + GRACE_SECONDS * 1000;
+        try {
+            while (busy && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (inFlightMessage != null) {
+            release(inFlightType, inFlightMessage);
+            inFlightMessage = null;
+        }
+        System.out.println("Worker drained.");
+    }
+
+    private void release(String type, Message message) {
+        try {
+            aws.releaseMessageToManager(type, message);
+            Metrics.increment("worker_messages_released_total");
+            System.out.println("Released unfinished message: " + message.messageId());
+        } catch (Exception e) {
+            System.err.println("Failed to release message " + message.messageId() + ": " + e.getMessage());
+        }
+    }
+}
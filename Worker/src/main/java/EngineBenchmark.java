@@ -0,0 +1,184 @@
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.Sentence;
+import edu.stanford.nlp.trees.Constituent;
+import edu.stanford.nlp.trees.LabeledScoredConstituentFactory;
+import edu.stanford.nlp.trees.Tree;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Offline throughput/accuracy comparison of the analysis engines.
+// There is no gold treebank here, so accuracy is measured as agreement with the PCFG output:
+// tag agreement for POS, labeled bracket F1 for CONSTITUENCY and labeled/unlabeled attachment
+// agreement for DEPENDENCY.
+//
+// Usage: java -cp Worker-1.0-SNAPSHOT.jar EngineBenchmark <sentencesFile> <reportFile> [TYPE=engine ...]
+public class EngineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java -cp Worker-1.0-SNAPSHOT.jar EngineBenchmark <sentencesFile> <reportFile> [TYPE=engine ...]");
+            return;
+        }
+
+        List<List<HasWord>> sentences = readSentences(args[0]);
+        List<String[]> candidates = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            candidates.add(args[i].split("=", 2));
+        }
+        if (candidates.isEmpty()) {
+            candidates.add(new String[]{"POS", AnalysisEngines.TAGGER});
+            candidates.add(new String[]{"CONSTITUENCY", AnalysisEngines.SHIFT_REDUCE});
+            candidates.add(new String[]{"DEPENDENCY", AnalysisEngines.SHIFT_REDUCE});
+            candidates.add(new String[]{"DEPENDENCY", AnalysisEngines.NEURAL_DEPENDENCY});
+        }
+
+        AnalysisEngines engines = new AnalysisEngines(new EnumMap<>(TextAnalyzer.AnalysisType.class));
+        Map<TextAnalyzer.AnalysisType, List<String>> references = new EnumMap<>(TextAnalyzer.AnalysisType.class);
+        Map<TextAnalyzer.AnalysisType, Double> referenceSeconds = new EnumMap<>(TextAnalyzer.AnalysisType.class);
+
+        StringBuilder report = new StringBuilder();
+        report.append("# Analysis engine comparison\n\n");
+        report.append("Sentences: ").append(sentences.size()).append(" from ").append(args[0]).append("\n");
+        report.append("Accuracy is agreement with the pcfg engine output.\n\n");
+        report.append("| Type | Engine | Seconds | Sentences/sec | Speedup vs pcfg | Agreement |\n");
+        report.append("|------|--------|---------|---------------|-----------------|-----------|\n");
+
+        for (String[] candidate : candidates) {
+            TextAnalyzer.AnalysisType type = TextAnalyzer.AnalysisType.valueOf(candidate[0].toUpperCase());
+            if (!references.containsKey(type)) {
+                long start = System.nanoTime();
+                references.put(type, run(engines.get(AnalysisEngines.PCFG, type), sentences));
+                referenceSeconds.put(type, (System.nanoTime() - start) / 1e9);
+                appendRow(report, type, AnalysisEngines.PCFG, referenceSeconds.get(type), sentences.size(), 1.0, "reference");
+            }
+
+            AnalysisEngine engine = engines.get(candidate[1], type);
+            long start = System.nanoTime();
+            List<String> outputs = run(engine, sentences);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            String agreement = agreement(type, references.get(type), outputs);
+            appendRow(report, type, candidate[1], seconds, sentences.size(), referenceSeconds.get(type) / seconds, agreement);
+        }
+
+        System.out.print(report);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(args[1]))) {
+            writer.write(report.toString());
+        }
+    }
+
+    private static List<List<HasWord>> readSentences(String path) throws Exception {
+        List<List<HasWord>> sentences = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    sentences.add(Sentence.toWordList(line.trim().split("\\s+")));
+                }
+            }
+        }
+        return sentences;
+    }
+
+    private static List<String> run(AnalysisEngine engine, List<List<HasWord>> sentences) {
+        List<String> outputs = new ArrayList<>();
+        for (List<HasWord> sentence : sentences) {
+            outputs.add(engine.analyze(sentence));
+        }
+        return outputs;
+    }
+
+    private static void appendRow(StringBuilder report, TextAnalyzer.AnalysisType type, String engine,
+                                  double seconds, int sentences, double speedup, String agreement) {
+        report.append(String.format("| %s | %s | %.1f | %.2f | %.2fx | %s |%n",
+                type, engine, seconds, sentences / seconds, speedup, agreement));
+    }
+
+    private static String agreement(TextAnalyzer.AnalysisType type, List<String> reference, List<String> candidate) {
+        switch (type) {
+            case POS:
+                return String.format("%.2f%% tags", 100 * tagAgreement(reference, candidate));
+            case CONSTITUENCY:
+                return String.format("%.2f%% bracket F1", 100 * bracketF1(reference, candidate));
+            case DEPENDENCY:
+                return String.format("%.2f%% LAS, %.2f%% UAS",
+                        100 * attachmentAgreement(reference, candidate, true),
+                        100 * attachmentAgreement(reference, candidate, false));
+            default:
+                return "";
+        }
+    }
+
+    // "word_TAG word_TAG ..." lines, compared position by position
+    private static double tagAgreement(List<String> reference, List<String> candidate) {
+        long total = 0;
+        long same = 0;
+        for (int i = 0; i < reference.size(); i++) {
+            String[] expected = reference.get(i).split(" ");
+            String[] actual = candidate.get(i).split(" ");
+            total += expected.length;
+            for (int j = 0; j < Math.min(expected.length, actual.length); j++) {
+                if (tag(expected[j]).equals(tag(actual[j]))) {
+                    same++;
+                }
+            }
+        }
+        return total == 0 ? 0 : (double) same / total;
+    }
+
+    private static String tag(String taggedWord) {
+        return taggedWord.substring(taggedWord.lastIndexOf('_') + 1);
+    }
+
+    private static double bracketF1(List<String> reference, List<String> candidate) {
+        long matched = 0;
+        long expectedCount = 0;
+        long actualCount = 0;
+        for (int i = 0; i < reference.size(); i++) {
+            Set<Constituent> expected = Tree.valueOf(reference.get(i)).constituents(new LabeledScoredConstituentFactory());
+            Set<Constituent> actual = Tree.valueOf(candidate.get(i)).constituents(new LabeledScoredConstituentFactory());
+            expectedCount += expected.size();
+            actualCount += actual.size();
+            actual.retainAll(expected);
+            matched += actual.size();
+        }
+        double precision = actualCount == 0 ? 0 : (double) matched / actualCount;
+        double recall = expectedCount == 0 ? 0 : (double) matched / expectedCount;
+        return precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+    }
+
+    // "[rel(gov-1, dep-2), ...]" lines; unlabeled agreement ignores the relation name
+    private static double attachmentAgreement(List<String> reference, List<String> candidate, boolean labeled) {
+        long total = 0;
+        long same = 0;
+        for (int i = 0; i < reference.size(); i++) {
+            Set<String> expected = dependencies(reference.get(i), labeled);
+            Set<String> actual = dependencies(candidate.get(i), labeled);
+            total += expected.size();
+            actual.retainAll(expected);
+            same += actual.size();
+        }
+        return total == 0 ? 0 : (double) same / total;
+    }
+
+    private static Set<String> dependencies(String line, boolean labeled) {
+        Set<String> dependencies = new HashSet<>();
+        String body = line.replaceAll("^\\[|\\]$", "");
+        for (String dependency : Arrays.asList(body.split("\\), "))) {
+            if (dependency.isEmpty()) {
+                continue;
+            }
+            dependencies.add(labeled ? dependency : dependency.substring(dependency.indexOf('(') + 1));
+        }
+        return dependencies;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Reports this worker to the manager's registry every INTERVAL_SECONDS:
+// "heartbeat <instanceId> <state> <activeTasks> <freeHeapMB> <sentencesPerSecond> <tasksCompleted> <types>"
+// where types are the analysis types this worker serves, e.g. "POS,DEPENDENCY".
+// The first one goes out as soon as the queues are known, while the models may still be loading.
+// A draining worker (see Drain) reports "draining" until it is gone.
+class Heartbeat {
+
+    static final String LOADING = "loading";
+    static final String IDLE = "idle";
+    static final String BUSY = "busy";
+    static final String DRAINING = "draining";
+
+    private static final long INTERVAL_SECONDS = 15;
+
+    private final AWS aws;
+    private final String instanceId;
+    private final String types;
+    private volatile String state = LOADING;
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicLong tasksCompleted = new AtomicLong();
+    private final AtomicLong sentences = new AtomicLong();
+    private long lastSentences = 0;
+    private long lastBeatNanos = System.nanoTime();
+
+    Heartbeat(AWS aws, String instanceId, List<TextAnalyzer.AnalysisType> types) {
+        this.aws = aws;
+        this.instanceId = instanceId;
+        StringBuilder typeList = new StringBuilder();
+        for (TextAnalyzer.AnalysisType type : types) {
+            typeList.append(typeList.length() == 0 ? "" : ",").append(type.name());
+        }
+        this.types = typeList.toString();
+    }
+
+    String getInstanceId() {
+        return instanceId;
+    }
+
+    void start() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::beat, 0, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    void ready() {
+        state = IDLE;
+    }
+
+    void taskStarted() {
+        activeTasks.incrementAndGet();
+        if (!state.equals(DRAINING)) {
+            state = BUSY;
+        }
+    }
+
+    void taskFinished(int sentencesAnalyzed) {
+        sentences.addAndGet(sentencesAnalyzed);
+        tasksCompleted.incrementAndGet();
+        if (activeTasks.decrementAndGet() == 0 && !state.equals(DRAINING)) {
+            state = IDLE;
+        }
+    }
+
+    // Reported at once so the manager stops counting on this worker
+    void draining() {
+        state = DRAINING;
+        beat();
+    }
+
+    private synchronized void beat() {
+        try {
+            Runtime runtime = Runtime.getRuntime();
+            long freeHeapMb = (runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) >> 20;
+
+            // Sentences per second since the previous heartbeat
+            long now = System.nanoTime();
+            long total = sentences.get();
+            double sentencesPerSecond = (total - lastSentences) * 1e9 / Math.max(1, now - lastBeatNanos);
+            lastSentences = total;
+            lastBeatNanos = now;
+
+            aws.sendHeartbeat("heartbeat " + instanceId + " " + state + " " + activeTasks.get() + " " + freeHeapMb
+                    + " " + String.format(Locale.ROOT, "%.2f", sentencesPerSecond) + " " + tasksCompleted.get() + " " + types);
+        } catch (Exception e) {
+            // A missed heartbeat is tolerated by the registry - keep the schedule going
+            System.err.println("Heartbeat failed: " + e.getMessage());
+        }
+    }
+}
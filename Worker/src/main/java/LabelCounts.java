@@ -0,0 +1,96 @@
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Label frequencies of one analyzed file, for the "stats" job option: POS tags, phrasal
+// constituent labels or dependency relations, depending on the analysis type. Labels are
+// numbered once per worker, so a file's table is a plain int array indexed by label id.
+// Sent to the manager as the last field of the result line:
+// "stats=<label>:<count>,<label>:<count>,..." with URL encoded labels (tags like "," and
+// relations like "nmod:poss" would otherwise clash with the separators).
+class LabelCounts {
+
+    // Label dictionary shared by all files this worker analyzes
+    private static final Map<String, Integer> ids = new HashMap<>();
+    private static final List<String> labels = new ArrayList<>();
+
+    private int[] counts = new int[64];
+
+    private static synchronized int idOf(String label) {
+        Integer id = ids.get(label);
+        if (id == null) {
+            id = labels.size();
+            ids.put(label, id);
+            labels.add(label);
+        }
+        return id;
+    }
+
+    private static synchronized String labelOf(int id) {
+        return labels.get(id);
+    }
+
+    void add(String label) {
+        int id = idOf(label);
+        if (id >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, id + 1));
+        }
+        counts[id]++;
+    }
+
+    // Counts the labels of one output line of the given analysis type
+    void addOutput(TextAnalyzer.AnalysisType type, String line) {
+        if (line.isEmpty() || line.startsWith("ERROR:")) {
+            return;
+        }
+        switch (type) {
+            case POS:
+                // word_TAG word_TAG ...
+                for (String token : line.split(" ")) {
+                    int separator = token.lastIndexOf('_');
+                    if (separator >= 0 && separator < token.length() - 1) {
+                        add(token.substring(separator + 1));
+                    }
+                }
+                break;
+            case CONSTITUENCY:
+                // (ROOT (S (NP (DT The) (NN cat)) ...)) - a label followed by a subtree is phrasal
+                for (int i = line.indexOf('('); i >= 0; i = line.indexOf('(', i + 1)) {
+                    int end = line.indexOf(' ', i);
+                    if (end > i + 1 && end + 1 < line.length() && line.charAt(end + 1) == '(') {
+                        add(line.substring(i + 1, end));
+                    }
+                }
+                break;
+            case DEPENDENCY:
+                // [det(cat-2, The-1), nsubj(sat-3, cat-2), ...]
+                String dependencies = line.startsWith("[") && line.endsWith("]") ? line.substring(1, line.length() - 1) : line;
+                for (String dependency : dependencies.split("\\), ")) {
+                    int open = dependency.indexOf('(');
+                    if (open > 0) {
+                        add(dependency.substring(0, open));
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // The result line field, or an empty string if nothing was counted
+    String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] == 0) {
+                continue;
+            }
+            sb.append(sb.length() == 0 ? "stats=" : ",");
+            sb.append(URLEncoder.encode(labelOf(id), StandardCharsets.UTF_8)).append(':').append(counts[id]);
+        }
+        return sb.toString();
+    }
+}
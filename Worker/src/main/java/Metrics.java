@@ -0,0 +1,189 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
+
+// Counters, histograms and scrape-time gauges served in the Prometheus text format on
+// http://<host>:9100/metrics by the JDK's built-in HTTP server
+class Metrics {
+
+    static final int PORT = 9100;
+    // Upper bounds in seconds - stages range from sub-second uploads to multi-minute parses
+    private static final double[] BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600};
+
+    // Writes gauges computed at scrape time
+    interface Collector {
+        void collect(StringBuilder out);
+    }
+
+    // metric name -> label string -> value, sorted so the output is stable
+    private static final Map<String, Map<String, DoubleAdder>> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, Map<String, Histogram>> histograms = new ConcurrentSkipListMap<>();
+    private static final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    static void start() {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(null);
+            server.start();
+            System.out.println("Metrics available on port " + PORT + " at /metrics");
+        } catch (IOException e) {
+            // Metrics are optional - keep working without them
+            System.err.println("Metrics endpoint unavailable: " + e.getMessage());
+        }
+    }
+
+    // labels are name/value pairs, e.g. increment("tasks_total", "outcome", "success")
+    static void increment(String name, String... labels) {
+        add(name, 1, labels);
+    }
+
+    static void add(String name, double amount, String... labels) {
+        counters.computeIfAbsent(name, key -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(labels(labels), key -> new DoubleAdder())
+                .add(amount);
+    }
+
+    static void observe(String name, double seconds, String... labels) {
+        histograms.computeIfAbsent(name, key -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(labels(labels), key -> new Histogram())
+                .observe(seconds);
+    }
+
+    static double counterValue(String name, String... labels) {
+        Map<String, DoubleAdder> series = counters.get(name);
+        DoubleAdder value = series == null ? null : series.get(labels(labels));
+        return value == null ? 0 : value.sum();
+    }
+
+    static void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    static void type(StringBuilder out, String name, String type) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void sample(StringBuilder out, String name, double value, String... labels) {
+        out.append(name).append(labels(labels)).append(' ').append(format(value)).append('\n');
+    }
+
+    static String render() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Map<String, DoubleAdder>> counter : counters.entrySet()) {
+            type(out, counter.getKey(), "counter");
+            for (Map.Entry<String, DoubleAdder> series : counter.getValue().entrySet()) {
+                out.append(counter.getKey()).append(series.getKey()).append(' ').append(format(series.getValue().sum())).append('\n');
+            }
+        }
+        for (Map.Entry<String, Map<String, Histogram>> histogram : histograms.entrySet()) {
+            type(out, histogram.getKey(), "histogram");
+            for (Map.Entry<String, Histogram> series : histogram.getValue().entrySet()) {
+                series.getValue().render(out, histogram.getKey(), series.getKey());
+            }
+        }
+        for (Collector collector : collectors) {
+            try {
+                collector.collect(out);
+            } catch (RuntimeException e) {
+                // One failing source (e.g. an AWS call) shouldn't hide the others
+                System.err.println("Metrics collector failed: " + e.getMessage());
+            }
+        }
+        collectJvm(out);
+        return out.toString();
+    }
+
+    private static void collectJvm(StringBuilder out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        type(out, "jvm_heap_bytes", "gauge");
+        sample(out, "jvm_heap_bytes", heap.getUsed(), "area", "used");
+        sample(out, "jvm_heap_bytes", heap.getCommitted(), "area", "committed");
+        sample(out, "jvm_heap_bytes", heap.getMax(), "area", "max");
+
+        List<GarbageCollectorMXBean> collectorBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        type(out, "jvm_gc_collections_total", "counter");
+        for (GarbageCollectorMXBean gc : collectorBeans) {
+            sample(out, "jvm_gc_collections_total", gc.getCollectionCount(), "gc", gc.getName());
+        }
+        type(out, "jvm_gc_seconds_total", "counter");
+        for (GarbageCollectorMXBean gc : collectorBeans) {
+            sample(out, "jvm_gc_seconds_total", gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+        }
+
+        type(out, "jvm_threads", "gauge");
+        sample(out, "jvm_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"")
+              .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+              .append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static class Histogram {
+        private final long[] bucketCounts = new long[BUCKETS.length];
+        private long count = 0;
+        private double sum = 0;
+
+        synchronized void observe(double seconds) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    bucketCounts[i]++;
+                    break;
+                }
+            }
+            count++;
+            sum += seconds;
+        }
+
+        synchronized void render(StringBuilder out, String name, String labels) {
+            // Buckets are cumulative and carry the series' labels plus "le"
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += bucketCounts[i];
+                out.append(name).append("_bucket").append(prefix).append("le=\"").append(BUCKETS[i]).append("\"} ")
+                   .append(cumulative).append('\n');
+            }
+            out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+            out.append(name).append("_sum").append(labels).append(' ').append(format(sum)).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.nndep.DependencyParser;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import edu.stanford.nlp.trees.GrammaticalStructure;
+
+import java.util.List;
+
+// Transition-based neural network dependency parser - dependencies without any constituency parse
+class NeuralDependencyEngine implements AnalysisEngine {
+
+    // Stanford Dependencies, the same relation set the PCFG conversion produces
+    static final String MODEL = "edu/stanford/nlp/models/parser/nndep/english_SD.gz";
+
+    private static final long BASE_BYTES = 4L * 1024 * 1024;
+    private static final long BYTES_PER_TOKEN = 64L * 1024;
+
+    private final MaxentTagger tagger;
+    private final DependencyParser parser;
+
+    NeuralDependencyEngine(MaxentTagger tagger, DependencyParser parser) {
+        this.tagger = tagger;
+        this.parser = parser;
+    }
+
+    @Override
+    public String analyze(List<HasWord> sentence) {
+        List<TaggedWord> tagged = tagger.tagSentence(sentence);
+        GrammaticalStructure gs;
+        // The classifier reuses its scratch arrays between predictions
+        synchronized (parser) {
+            gs = parser.predict(tagged);
+        }
+        return gs.typedDependencies().toString();
+    }
+
+    @Override
+    public long estimateBytes(int tokens) {
+        return BASE_BYTES + tokens * BYTES_PER_TOKEN;
+    }
+}
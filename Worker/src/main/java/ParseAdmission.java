@@ -0,0 +1,113 @@
+// Admission control for concurrent parses.
+// The PCFG chart grows with the square of the sentence length, so a few long sentences parsed
+// at the same time can exhaust the heap. Every parse reserves its engine's memory estimate from
+// a heap budget before it starts and releases it when it is done.
+class ParseAdmission {
+
+    // Share of the heap left after model loading that concurrent parses may reserve
+    private static final double CONCURRENT_HEAP_FRACTION = 0.6;
+    // Share of the heap left after model loading that a single serialized parse may use
+    private static final double SERIALIZED_HEAP_FRACTION = 0.9;
+
+    private final long concurrentBudget;
+    private final long serializedLimit;
+
+    private long reservedBytes = 0;
+    private int activeParses = 0;
+    private int waitingSerialized = 0;
+
+    private long admitted = 0;
+    private long serialized = 0;
+    private long rejected = 0;
+    private long queued = 0;
+    private long totalQueueNanos = 0;
+    private long maxQueueNanos = 0;
+
+    ParseAdmission() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedAfterModelLoad = runtime.totalMemory() - runtime.freeMemory();
+        long headroom = Math.max(0, runtime.maxMemory() - usedAfterModelLoad);
+        this.concurrentBudget = (long) (headroom * CONCURRENT_HEAP_FRACTION);
+        this.serializedLimit = (long) (headroom * SERIALIZED_HEAP_FRACTION);
+        System.out.println("Parse admission budget: " + (concurrentBudget >> 20) + "MB concurrent, "
+                + (serializedLimit >> 20) + "MB serialized");
+    }
+
+    // Blocks until the parse fits in the budget. Parses larger than the concurrent budget wait
+    // until nothing else is running and then run alone. Returns false if the parse would not fit
+    // even alone - the caller must not parse it and must not call release().
+    synchronized boolean acquire(long bytes) throws InterruptedException {
+        if (bytes > serializedLimit) {
+            rejected++;
+            return false;
+        }
+
+        long start = System.nanoTime();
+        boolean waited = false;
+        if (bytes > concurrentBudget) {
+            waitingSerialized++;
+            try {
+                while (activeParses > 0) {
+                    waited = true;
+                    wait();
+                }
+            } finally {
+                waitingSerialized--;
+            }
+            serialized++;
+        } else {
+            // Don't let new small parses starve a waiting serialized one
+            while (reservedBytes + bytes > concurrentBudget || waitingSerialized > 0) {
+                waited = true;
+                wait();
+            }
+        }
+
+        if (waited) {
+            long waitedNanos = System.nanoTime() - start;
+            queued++;
+            totalQueueNanos += waitedNanos;
+            maxQueueNanos = Math.max(maxQueueNanos, waitedNanos);
+        }
+        admitted++;
+        activeParses++;
+        reservedBytes += bytes;
+        return true;
+    }
+
+    synchronized void release(long bytes) {
+        activeParses--;
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    synchronized long getSerialized() {
+        return serialized;
+    }
+
+    synchronized long getRejected() {
+        return rejected;
+    }
+
+    synchronized long getQueued() {
+        return queued;
+    }
+
+    synchronized long getTotalQueueMillis() {
+        return totalQueueNanos / 1_000_000;
+    }
+
+    synchronized long getMaxQueueMillis() {
+        return maxQueueNanos / 1_000_000;
+    }
+
+    synchronized String summary() {
+        return "admitted=" + admitted + " serialized=" + serialized + " rejected=" + rejected
+                + " queued=" + queued + " totalQueueMs=" + totalQueueNanos / 1_000_000
+                + " maxQueueMs=" + maxQueueNanos / 1_000_000;
+    }
+}
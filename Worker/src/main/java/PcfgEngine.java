@@ -0,0 +1,75 @@
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.trees.GrammaticalStructure;
+import edu.stanford.nlp.trees.GrammaticalStructureFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreebankLanguagePack;
+
+import java.util.List;
+
+// The original analysis path: a full lexicalized PCFG parse for every analysis type
+class PcfgEngine implements AnalysisEngine {
+
+    static final String MODEL = "edu/stanford/nlp/models/lexparser/englishPCFG.ser.gz";
+    // Uncompressed copy of MODEL written by WorkerWarmup - skips inflating the model on startup
+    static final String SNAPSHOT = "englishPCFG.ser";
+
+    // Inside and outside scores - one float each per (span, state)
+    private static final long BYTES_PER_SPAN_STATE = 8;
+    // Narrow/wide left/right extents - one int each per (position, state)
+    private static final long BYTES_PER_POSITION_STATE = 16;
+    // Parser query, lattice, tree and output strings
+    private static final long BASE_PARSE_BYTES = 8L * 1024 * 1024;
+
+    private final LexicalizedParser parser;
+    private final TextAnalyzer.AnalysisType type;
+    private final int numStates;
+
+    PcfgEngine(LexicalizedParser parser, TextAnalyzer.AnalysisType type) {
+        this.parser = parser;
+        this.type = type;
+        this.numStates = parser.stateIndex.size();
+    }
+
+    @Override
+    public String analyze(List<HasWord> sentence) {
+        Tree parse = parser.apply(sentence);
+        switch (type) {
+            case POS:
+                return processPOS(parse);
+            case CONSTITUENCY:
+                return parse.toString();
+            case DEPENDENCY:
+                return processDependency(parse);
+            default:
+                throw new IllegalArgumentException("Unknown analysis type: " + type);
+        }
+    }
+
+    // The PCFG chart grows with the square of the sentence length
+    @Override
+    public long estimateBytes(int tokens) {
+        long spans = (long) tokens * (tokens + 1) / 2;
+        return BASE_PARSE_BYTES
+                + spans * numStates * BYTES_PER_SPAN_STATE
+                + (long) (tokens + 1) * numStates * BYTES_PER_POSITION_STATE;
+    }
+
+    private String processPOS(Tree parse) {
+        // Leaves with POS tags
+        StringBuilder sb = new StringBuilder();
+        for (Tree leaf : parse.getLeaves()) {
+            Tree parent = leaf.parent(parse);
+            sb.append(leaf.value()).append("_").append(parent.label()).append(" ");
+        }
+        return sb.toString().trim();
+    }
+
+    private String processDependency(Tree parse) {
+        TreebankLanguagePack tlp = parser.treebankLanguagePack();
+        GrammaticalStructureFactory gsf = tlp.grammaticalStructureFactory();
+        GrammaticalStructure gs = gsf.newGrammaticalStructure(parse);
+
+        return gs.typedDependencies().toString();
+    }
+}
@@ -0,0 +1,54 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Custom Flight Recorder events. They cost next to nothing while no recording is running.
+class ProfileEvents {
+
+    static final String TASK_EVENT = "textanalysis.Task";
+    static final String SENTENCE_EVENT = "textanalysis.Sentence";
+
+    @Name(TASK_EVENT)
+    @Label("Task")
+    @Category("Text Analysis")
+    @Description("One analysis task, from receiving it to uploading its result")
+    static class TaskEvent extends Event {
+        @Label("App Id")
+        String appId;
+
+        @Label("Analysis Type")
+        String type;
+
+        @Label("Engine")
+        String engine;
+
+        @Label("URL")
+        String url;
+
+        @Label("Sentences")
+        int sentences;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name(SENTENCE_EVENT)
+    @Label("Sentence")
+    @Category("Text Analysis")
+    @Description("One sentence analyzed by an engine; the event duration is the parse time")
+    static class SentenceEvent extends Event {
+        @Label("Analysis Type")
+        String type;
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Rejected")
+        boolean rejected;
+    }
+}
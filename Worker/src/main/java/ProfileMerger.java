@@ -0,0 +1,111 @@
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+// Merges the workers' Flight Recorder files (any *.jfr under recordingsDir) into a single recording
+// and prints a summary of sentence parse times and the hottest methods across all workers.
+// Download the recordings first: aws s3 cp --recursive s3://<bucket>/profiles/ <recordingsDir>
+// Usage: java -cp Worker-1.0-SNAPSHOT.jar ProfileMerger <recordingsDir> <merged.jfr>
+public class ProfileMerger {
+
+    private static final int TOP_METHODS = 20;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ProfileMerger <recordingsDir> <merged.jfr>");
+            System.exit(1);
+        }
+
+        // profiles/<instanceId>/<start millis>.jfr - one directory per worker
+        List<Path> recordings = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(Paths.get(args[0]))) {
+            files.filter(file -> file.toString().endsWith(".jfr")).forEach(recordings::add);
+        }
+        Collections.sort(recordings);
+
+        // A recording file is a sequence of self-contained chunks, so concatenated files are a valid recording
+        Path merged = Paths.get(args[1]);
+        try (OutputStream out = Files.newOutputStream(merged)) {
+            for (Path recording : recordings) {
+                Files.copy(recording, out);
+            }
+        }
+        System.out.println("Merged " + recordings.size() + " recordings into " + merged);
+
+        Map<String, List<Long>> parseMillis = new TreeMap<>();
+        Map<String, Long> tokens = new HashMap<>();
+        Map<String, Integer> rejected = new HashMap<>();
+        Map<String, Integer> taskOutcomes = new TreeMap<>();
+        Map<String, Integer> hotMethods = new HashMap<>();
+        int samples = 0;
+
+        try (RecordingFile file = new RecordingFile(merged)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String name = event.getEventType().getName();
+                if (name.equals(ProfileEvents.SENTENCE_EVENT)) {
+                    String key = event.getString("type") + "/" + event.getString("engine");
+                    if (event.getBoolean("rejected")) {
+                        rejected.merge(key, 1, Integer::sum);
+                        continue;
+                    }
+                    parseMillis.computeIfAbsent(key, k -> new ArrayList<>()).add(event.getDuration().toMillis());
+                    tokens.merge(key, (long) event.getInt("tokens"), Long::sum);
+                } else if (name.equals(ProfileEvents.TASK_EVENT)) {
+                    taskOutcomes.merge(event.getString("outcome"), 1, Integer::sum);
+                } else if (name.equals("jdk.ExecutionSample")) {
+                    RecordedStackTrace stackTrace = event.getStackTrace();
+                    if (stackTrace != null && !stackTrace.getFrames().isEmpty()) {
+                        RecordedFrame top = stackTrace.getFrames().get(0);
+                        hotMethods.merge(top.getMethod().getType().getName() + "." + top.getMethod().getName(), 1, Integer::sum);
+                        samples++;
+                    }
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println("Tasks: " + taskOutcomes);
+        System.out.println();
+        System.out.println(String.format("%-26s %9s %10s %9s %9s %9s %9s",
+                "type/engine", "sentences", "avg tokens", "avg ms", "p95 ms", "max ms", "rejected"));
+        for (Map.Entry<String, List<Long>> entry : parseMillis.entrySet()) {
+            List<Long> millis = entry.getValue();
+            Collections.sort(millis);
+            long total = 0;
+            for (long value : millis) {
+                total += value;
+            }
+            System.out.println(String.format("%-26s %9d %10.1f %9.1f %9d %9d %9d",
+                    entry.getKey(),
+                    millis.size(),
+                    tokens.get(entry.getKey()) / (double) millis.size(),
+                    total / (double) millis.size(),
+                    millis.get((int) Math.ceil(millis.size() * 0.95) - 1),
+                    millis.get(millis.size() - 1),
+                    rejected.getOrDefault(entry.getKey(), 0)));
+        }
+
+        System.out.println();
+        System.out.println("Hottest methods (" + samples + " execution samples):");
+        List<Map.Entry<String, Integer>> methods = new ArrayList<>(hotMethods.entrySet());
+        methods.sort((a, b) -> b.getValue() - a.getValue());
+        for (Map.Entry<String, Integer> method : methods.subList(0, Math.min(TOP_METHODS, methods.size()))) {
+            System.out.println(String.format("%6.2f%%  %s", method.getValue() * 100.0 / samples, method.getKey()));
+        }
+    }
+}
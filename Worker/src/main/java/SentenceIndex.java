@@ -0,0 +1,141 @@
+import edu.stanford.nlp.process.Morphology;
+import edu.stanford.nlp.trees.Tree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Inverted index of one analyzed file, for the "index" job option. Every output line that
+// holds an analysis is a sentence; its byte range in the (uncompressed) output is kept so a
+// client can fetch just that sentence with a ranged GET. Keys are:
+// tag:<POS tag>, lemma:<lemma>, label:<phrasal label>, attach:<parent label>><child label>
+// (e.g. attach:NP>PP) and rel:<relation>, rel:<relation>/<head lemma> (e.g. rel:nsubjpass/kill).
+// Uploaded next to the result as <result key>.postings, merged per job by the manager:
+// <offset>+<length> <offset>+<length> ...     (sentence pointers, by sentence number)
+// <key>\t<sentence> <sentence> ...           (one line per key, sentences ascending)
+class SentenceIndex {
+
+    // Lemmatizer state is per instance - one per file, used by the writing thread only
+    private final Morphology morphology = new Morphology();
+    private final Map<String, Postings> postings = new TreeMap<>();
+    private long[] offsets = new long[256];
+    private int[] lengths = new int[256];
+    private int sentences = 0;
+    private long offset = 0;
+
+    // Sentence numbers of one key, ascending and without duplicates
+    private static class Postings {
+        int[] sentences = new int[4];
+        int size = 0;
+
+        void add(int sentence) {
+            if (size > 0 && sentences[size - 1] == sentence) {
+                return;
+            }
+            if (size == sentences.length) {
+                sentences = Arrays.copyOf(sentences, size * 2);
+            }
+            sentences[size++] = sentence;
+        }
+    }
+
+    // Called with every output line in order, so the byte offsets line up with the output file
+    void addOutput(TextAnalyzer.AnalysisType type, String line) {
+        int length = line.getBytes(StandardCharsets.UTF_8).length;
+        long start = offset;
+        offset += length + 1;
+        if (line.isEmpty() || line.startsWith("ERROR:")) {
+            return;
+        }
+        if (sentences == offsets.length) {
+            offsets = Arrays.copyOf(offsets, sentences * 2);
+            lengths = Arrays.copyOf(lengths, sentences * 2);
+        }
+        offsets[sentences] = start;
+        lengths[sentences] = length;
+        int sentence = sentences++;
+        switch (type) {
+            case POS:
+                // word_TAG word_TAG ...
+                for (String token : line.split(" ")) {
+                    int separator = token.lastIndexOf('_');
+                    if (separator > 0 && separator < token.length() - 1) {
+                        String tag = token.substring(separator + 1);
+                        add("tag:" + tag, sentence);
+                        add("lemma:" + morphology.lemma(token.substring(0, separator), tag, true), sentence);
+                    }
+                }
+                break;
+            case CONSTITUENCY:
+                addTree(Tree.valueOf(line), sentence);
+                break;
+            case DEPENDENCY:
+                // [det(cat-2, The-1), nsubj(sat-3, cat-2), ...]
+                String dependencies = line.startsWith("[") && line.endsWith("]") ? line.substring(1, line.length() - 1) : line;
+                for (String dependency : dependencies.split("\\), ")) {
+                    int open = dependency.indexOf('(');
+                    int comma = dependency.indexOf(", ", open);
+                    if (open <= 0 || comma < 0) {
+                        continue;
+                    }
+                    String relation = dependency.substring(0, open);
+                    String head = lemma(dependency.substring(open + 1, comma));
+                    String dependent = lemma(dependency.substring(comma + 2, dependency.endsWith(")") ? dependency.length() - 1 : dependency.length()));
+                    add("rel:" + relation, sentence);
+                    add("rel:" + relation + "/" + head, sentence);
+                    add("lemma:" + dependent, sentence);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addTree(Tree tree, int sentence) {
+        if (tree == null || tree.isLeaf()) {
+            return;
+        }
+        if (tree.isPreTerminal()) {
+            String tag = tree.value();
+            add("tag:" + tag, sentence);
+            add("lemma:" + morphology.lemma(tree.firstChild().value(), tag, true), sentence);
+            return;
+        }
+        add("label:" + tree.value(), sentence);
+        for (Tree child : tree.children()) {
+            if (!child.isLeaf() && !child.isPreTerminal()) {
+                add("attach:" + tree.value() + ">" + child.value(), sentence);
+            }
+            addTree(child, sentence);
+        }
+    }
+
+    // Lemma of a "word-index" dependency argument - no tag in this output, so a stem
+    private String lemma(String argument) {
+        int index = argument.lastIndexOf('-');
+        String word = index > 0 ? argument.substring(0, index) : argument;
+        return morphology.stem(word).toLowerCase();
+    }
+
+    private void add(String key, int sentence) {
+        postings.computeIfAbsent(key, k -> new Postings()).add(sentence);
+    }
+
+    String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            sb.append(i == 0 ? "" : " ").append(offsets[i]).append('+').append(lengths[i]);
+        }
+        sb.append('\n');
+        for (Map.Entry<String, Postings> key : postings.entrySet()) {
+            sb.append(key.getKey()).append('\t');
+            Postings list = key.getValue();
+            for (int i = 0; i < list.size; i++) {
+                sb.append(i == 0 ? "" : " ").append(list.sentences[i]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
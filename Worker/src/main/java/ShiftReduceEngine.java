@@ -0,0 +1,51 @@
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.shiftreduce.ShiftReduceParser;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import edu.stanford.nlp.trees.GrammaticalStructure;
+import edu.stanford.nlp.trees.GrammaticalStructureFactory;
+import edu.stanford.nlp.trees.Tree;
+
+import java.util.List;
+
+// Linear-time shift-reduce constituency parser over tagger output
+class ShiftReduceEngine implements AnalysisEngine {
+
+    static final String MODEL = "edu/stanford/nlp/models/srparser/englishSR.ser.gz";
+
+    // Beam states and feature vectors, linear in the sentence length
+    private static final long BASE_BYTES = 4L * 1024 * 1024;
+    private static final long BYTES_PER_TOKEN = 256L * 1024;
+
+    private final MaxentTagger tagger;
+    private final ShiftReduceParser parser;
+    private final TextAnalyzer.AnalysisType type;
+
+    ShiftReduceEngine(MaxentTagger tagger, ShiftReduceParser parser, TextAnalyzer.AnalysisType type) {
+        if (type == TextAnalyzer.AnalysisType.POS) {
+            throw new IllegalArgumentException("Engine sr does not support POS - use tagger");
+        }
+        this.tagger = tagger;
+        this.parser = parser;
+        this.type = type;
+    }
+
+    @Override
+    public String analyze(List<HasWord> sentence) {
+        List<TaggedWord> tagged = tagger.tagSentence(sentence);
+        Tree parse = parser.apply(tagged);
+        if (type == TextAnalyzer.AnalysisType.CONSTITUENCY) {
+            return parse.toString();
+        }
+
+        // Dependencies still come from the tree, but without the cubic PCFG parse
+        GrammaticalStructureFactory gsf = parser.treebankLanguagePack().grammaticalStructureFactory();
+        GrammaticalStructure gs = gsf.newGrammaticalStructure(parse);
+        return gs.typedDependencies().toString();
+    }
+
+    @Override
+    public long estimateBytes(int tokens) {
+        return BASE_BYTES + tokens * BYTES_PER_TOKEN;
+    }
+}
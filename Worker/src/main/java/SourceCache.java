@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+// Disk-backed cache of downloaded sources in the worker's working directory, keyed by URL.
+// Entries are evicted least recently used first once the cache grows past its size cap.
+// An entry validated recently is served without touching the network; an older one is
+// revalidated with a conditional GET (ETag / Last-Modified) and only re-downloaded if it changed.
+class SourceCache {
+
+    private static final Path CACHE_DIR = Paths.get("source-cache");
+    private static final long MAX_BYTES = 1024L * 1024 * 1024;
+    // The three analysis types of one job usually hit the same URL within minutes
+    private static final long FRESH_MILLIS = 10 * 60 * 1000;
+
+    private final SourceDownloader downloader;
+    // Access ordered - the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    // Keys with a fetch in progress - their files belong to that fetch
+    private final Set<String> busy = new HashSet<>();
+
+    private long hits = 0;
+    private long revalidated = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    SourceCache(SourceDownloader downloader) throws IOException {
+        this.downloader = downloader;
+        Files.createDirectories(CACHE_DIR);
+        load();
+    }
+
+    // Copies the source at url to target, from the cache when possible. Fetches of the same URL
+    // take turns (the later ones are usually served by the first); the monitor only guards the
+    // index and the counters, so downloads and copies of different URLs run in parallel.
+    void fetch(String url, Path target) throws Exception {
+        String key = key(url);
+        Entry entry;
+        synchronized (this) {
+            while (busy.contains(key)) {
+                wait();
+            }
+            busy.add(key);
+            entry = entries.get(key);
+        }
+        Path download = CACHE_DIR.resolve(key + ".tmp-" + UUID.randomUUID());
+        try {
+            if (entry != null && System.currentTimeMillis() - entry.validatedAt < FRESH_MILLIS && copyIfPresent(key, target)) {
+                synchronized (this) {
+                    hits++;
+                }
+                return;
+            }
+
+            SourceDownloader.Result result = downloader.fetch(url, download,
+                    entry == null ? null : entry.etag, entry == null ? null : entry.lastModified);
+            if (result.notModified && entry != null && copyIfPresent(key, target)) {
+                synchronized (this) {
+                    revalidated++;
+                    entry.validatedAt = System.currentTimeMillis();
+                }
+                writeMeta(key, entry);
+                return;
+            }
+            if (result.notModified) {
+                // The cached body is gone - fetch it unconditionally, and keep the validators of that response
+                result = downloader.fetch(url, download, null, null);
+            }
+            Entry fresh = new Entry(url, result.etag, result.lastModified, Files.size(download), System.currentTimeMillis());
+            synchronized (this) {
+                misses++;
+                unindex(key);
+            }
+            Files.move(download, body(key), StandardCopyOption.REPLACE_EXISTING);
+            writeMeta(key, fresh);
+            Files.copy(body(key), target, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                entries.put(key, fresh);
+                totalBytes += fresh.size;
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(download);
+            synchronized (this) {
+                busy.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    synchronized String summary() {
+        return "entries=" + entries.size() + " bytes=" + totalBytes + " hits=" + hits
+                + " revalidated=" + revalidated + " misses=" + misses + " evictions=" + evictions;
+    }
+
+    // Only called for a busy key, so eviction can't delete the body while it is copied
+    private boolean copyIfPresent(String key, Path target) throws IOException {
+        if (!Files.exists(body(key))) {
+            synchronized (this) {
+                unindex(key);
+            }
+            return false;
+        }
+        Files.copy(body(key), target, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    // Least recently used first, skipping the entries being fetched
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > MAX_BYTES && eldest.hasNext()) {
+            Map.Entry<String, Entry> victim = eldest.next();
+            if (busy.contains(victim.getKey())) {
+                continue;
+            }
+            eldest.remove();
+            totalBytes -= victim.getValue().size;
+            Files.deleteIfExists(body(victim.getKey()));
+            Files.deleteIfExists(meta(victim.getKey()));
+            evictions++;
+        }
+    }
+
+    private void unindex(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+    }
+
+    // Rebuilds the index from the metadata files of a previous run, least recently validated first
+    private void load() throws IOException {
+        List<Map.Entry<String, Entry>> loaded = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(CACHE_DIR)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.contains(".tmp-")) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(".meta")) {
+                    String key = name.substring(0, name.length() - ".meta".length());
+                    Entry entry = readMeta(key);
+                    if (entry != null && Files.exists(body(key))) {
+                        loaded.add(new AbstractMap.SimpleEntry<>(key, entry));
+                    }
+                }
+            }
+        }
+        loaded.sort(Comparator.comparingLong(e -> e.getValue().validatedAt));
+        for (Map.Entry<String, Entry> entry : loaded) {
+            entries.put(entry.getKey(), entry.getValue());
+            totalBytes += entry.getValue().size;
+        }
+        evict();
+        System.out.println("Source cache loaded: " + summary());
+    }
+
+    private Entry readMeta(String key) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(meta(key))) {
+            properties.load(in);
+            return new Entry(properties.getProperty("url"), properties.getProperty("etag"),
+                    properties.getProperty("lastModified"), Long.parseLong(properties.getProperty("size")),
+                    Long.parseLong(properties.getProperty("validatedAt")));
+        } catch (Exception e) {
+            System.err.println("Warning: Dropping unreadable cache entry " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeMeta(String key, Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", entry.url);
+        if (entry.etag != null) {
+            properties.setProperty("etag", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty("lastModified", entry.lastModified);
+        }
+        properties.setProperty("size", Long.toString(entry.size));
+        properties.setProperty("validatedAt", Long.toString(entry.validatedAt));
+        try (OutputStream out = Files.newOutputStream(meta(key))) {
+            properties.store(out, null);
+        }
+    }
+
+    private static Path body(String key) {
+        return CACHE_DIR.resolve(key + ".body");
+    }
+
+    private static Path meta(String key) {
+        return CACHE_DIR.resolve(key + ".meta");
+    }
+
+    private static String key(String url) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static class Entry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long size;
+        long validatedAt;
+
+        Entry(String url, String etag, String lastModified, long size, long validatedAt) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.validatedAt = validatedAt;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+// Downloads source files over one shared HTTP client, so connections (and TLS sessions) to the
+// same host are reused across tasks. Negotiates HTTP/2 and gzip, follows redirects, bounds the
+// number of concurrent downloads per host and retries transient failures with jittered backoff.
+// These retries are the whole retry budget of a download: once they are used up (or for a
+// permanent failure) it fails with DownloadFailedException, which the worker doesn't re-queue.
+class SourceDownloader {
+
+    private static final int MAX_CONCURRENT_PER_HOST = 4;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final Map<String, HostStats> hostStats = new ConcurrentHashMap<>();
+
+    void download(String fileUrl, Path localPath) throws Exception {
+        fetch(fileUrl, localPath, null, null);
+    }
+
+    // Conditional GET when etag or lastModified are given: a 304 leaves localPath untouched
+    // and is reported through Result.notModified.
+    Result fetch(String fileUrl, Path localPath, String etag, String lastModified) throws Exception {
+        URI uri = URI.create(fileUrl);
+        String host = uri.getHost() == null ? "" : uri.getHost();
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(60))
+                .header("Accept-Encoding", "gzip")
+                .GET();
+        if (etag != null) {
+            requestBuilder.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            requestBuilder.header("If-Modified-Since", lastModified);
+        }
+        HttpRequest request = requestBuilder.build();
+
+        HostStats stats = hostStats.computeIfAbsent(host, h -> new HostStats());
+        Semaphore permits = hostPermits.computeIfAbsent(host, h -> new Semaphore(MAX_CONCURRENT_PER_HOST));
+        // The permit is held per attempt only - not through the backoff sleep, so retries against a
+        // slow host don't keep other downloads from it waiting
+        for (int attempt = 1; ; attempt++) {
+            long retryAfterMillis = 0;
+            permits.acquire();
+            try {
+                long start = System.nanoTime();
+                stats.requests.incrementAndGet();
+                try {
+                    HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                    int status = response.statusCode();
+                    if (status == 200) {
+                        long bytes = saveBody(response, localPath);
+                        stats.bytes.addAndGet(bytes);
+                        stats.nanos.addAndGet(System.nanoTime() - start);
+                        return new Result(false, response);
+                    }
+                    response.body().close();
+                    if (status == 304) {
+                        stats.notModified.incrementAndGet();
+                        return new Result(true, response);
+                    }
+                    if (!isRetryable(status) || attempt == MAX_ATTEMPTS) {
+                        stats.failures.incrementAndGet();
+                        throw new DownloadFailedException("HTTP error code: " + status, null);
+                    }
+                    retryAfterMillis = retryAfterMillis(response);
+                    System.err.println("HTTP " + status + " from " + host + ", attempt " + attempt + " of " + MAX_ATTEMPTS);
+                } catch (IOException e) {
+                    if (attempt == MAX_ATTEMPTS) {
+                        stats.failures.incrementAndGet();
+                        throw new DownloadFailedException("Download failed after " + attempt + " attempts: " + e.getMessage(), e);
+                    }
+                    System.err.println("Download from " + host + " failed (" + e.getMessage() + "), attempt " + attempt + " of " + MAX_ATTEMPTS);
+                }
+            } finally {
+                permits.release();
+            }
+            stats.retries.incrementAndGet();
+            Thread.sleep(Math.max(retryAfterMillis, backoffMillis(attempt)));
+        }
+    }
+
+    Map<String, HostStats> getHostStats() {
+        return hostStats;
+    }
+
+    String summary(String host) {
+        HostStats stats = hostStats.get(host);
+        return stats == null ? host + ": no downloads" : host + ": " + stats;
+    }
+
+    private static long saveBody(HttpResponse<InputStream> response, Path localPath) throws IOException {
+        try (CountingInputStream raw = new CountingInputStream(response.body());
+             InputStream body = isGzip(response) ? new GZIPInputStream(raw) : raw) {
+            Files.copy(body, localPath, StandardCopyOption.REPLACE_EXISTING);
+            return raw.count;
+        }
+    }
+
+    private static boolean isGzip(HttpResponse<?> response) {
+        return response.headers().firstValue("Content-Encoding").map(e -> e.equalsIgnoreCase("gzip")).orElse(false);
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 408 || status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        try {
+            return response.headers().firstValue("Retry-After").map(v -> Long.parseLong(v.trim()) * 1000).orElse(0L);
+        } catch (NumberFormatException e) {
+            // HTTP-date form - fall back to our own backoff
+            return 0;
+        }
+    }
+
+    // Full jitter: a random delay up to an exponentially growing cap
+    private static long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    static class DownloadFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        DownloadFailedException(String message, IOException cause) {
+            super(message, cause);
+        }
+    }
+
+    static class Result {
+        final boolean notModified;
+        final String etag;
+        final String lastModified;
+
+        private Result(boolean notModified, HttpResponse<?> response) {
+            this.notModified = notModified;
+            this.etag = response.headers().firstValue("ETag").orElse(null);
+            this.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        }
+    }
+
+    static class HostStats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong notModified = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+
+        // Transferred (possibly compressed) bytes per second of successful downloads
+        double bytesPerSecond() {
+            long elapsed = nanos.get();
+            return elapsed == 0 ? 0 : bytes.get() * 1e9 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requests.get() + " notModified=" + notModified.get() + " retries=" + retries.get() + " failures=" + failures.get()
+                    + " bytes=" + bytes.get() + " rate=" + Math.round(bytesPerSecond() / 1024) + "KB/s";
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
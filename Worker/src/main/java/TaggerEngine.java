@@ -0,0 +1,33 @@
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+
+import java.util.List;
+
+// POS tags straight from the maximum entropy tagger - no parse at all
+class TaggerEngine implements AnalysisEngine {
+
+    private static final long BASE_BYTES = 2L * 1024 * 1024;
+    private static final long BYTES_PER_TOKEN = 16L * 1024;
+
+    private final MaxentTagger tagger;
+
+    TaggerEngine(MaxentTagger tagger) {
+        this.tagger = tagger;
+    }
+
+    @Override
+    public String analyze(List<HasWord> sentence) {
+        // Same "word_TAG word_TAG" format as the PCFG path
+        StringBuilder sb = new StringBuilder();
+        for (TaggedWord word : tagger.tagSentence(sentence)) {
+            sb.append(word.word()).append("_").append(word.tag()).append(" ");
+        }
+        return sb.toString().trim();
+    }
+
+    @Override
+    public long estimateBytes(int tokens) {
+        return BASE_BYTES + tokens * BYTES_PER_TOKEN;
+    }
+}
@@ -1,13 +1,18 @@
 import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.ling.Sentence;
-import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
-import edu.stanford.nlp.trees.Tree;
-import edu.stanford.nlp.trees.TreebankLanguagePack;
-import edu.stanford.nlp.trees.GrammaticalStructure;
-import edu.stanford.nlp.trees.GrammaticalStructureFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TextAnalyzer {
 
@@ -17,72 +22,126 @@ public class TextAnalyzer {
         DEPENDENCY
     }
 
-    private static final String PCFG_MODEL = "edu/stanford/nlp/models/lexparser/englishPCFG.ser.gz";
-    private final LexicalizedParser parser;
+    private static final int PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+    // How many sentences may be read ahead of the one currently being written
+    private static final int READ_AHEAD = PARSE_THREADS * 2;
+
+    private final AnalysisEngines engines;
+    private final ParseAdmission admission;
+    private final ExecutorService parsePool;
+
+    // engineDefaults overrides the deployment's engine per analysis type (pcfg otherwise);
+    // types are the analysis types this worker serves, whose default models are loaded up front
+    public TextAnalyzer(Map<AnalysisType, String> engineDefaults, Collection<AnalysisType> types) {
+        engines = new AnalysisEngines(engineDefaults);
+        // Load the default models up front so the heap budget is measured after them
+        for (AnalysisType type : types) {
+            engines.get(null, type);
+        }
+        admission = new ParseAdmission();
+        parsePool = Executors.newFixedThreadPool(PARSE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-    public TextAnalyzer() {
-        parser = LexicalizedParser.loadModel(PCFG_MODEL);
+    // engineName selects the backend for this file; null uses the deployment default.
+    // Returns the number of sentences analyzed.
+    public int analyzeFile(File input, File output, AnalysisType type, String engineName) throws Exception {
+        return analyzeFile(input, output, type, engineName, null, null);
     }
 
-    public void analyzeFile(File input, File output, AnalysisType type) throws Exception {
+    // Same, also counting the labels of the output into counts and indexing its sentences into
+    // index, each unless it is null
+    public int analyzeFile(File input, File output, AnalysisType type, String engineName, LabelCounts counts, SentenceIndex index) throws Exception {
+        AnalysisEngine engine = engines.get(engineName, type);
+        String engineLabel = engineName != null ? engineName : engines.defaultEngine(type);
+
+        // Sentences are parsed concurrently but written in input order
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        int sentences = 0;
         try (BufferedReader br = new BufferedReader(new FileReader(input));
-             BufferedWriter bw = new BufferedWriter(new FileWriter(output))) {
+             // UTF-8 whatever the locale, so the sentence offsets of the index match the bytes
+             BufferedWriter bw = new BufferedWriter(new FileWriter(output, StandardCharsets.UTF_8))) {
 
             String line;
             while ((line = br.readLine()) != null) {
+                if (pending.size() >= READ_AHEAD) {
+                    writeResult(bw, pending.poll(), type, counts, index);
+                }
 
                 if (line.trim().isEmpty()) {
-                    bw.write("\n");
+                    pending.add(CompletableFuture.completedFuture(""));
                     continue;
                 }
 
-                switch (type) {
-                    case POS:
-                        bw.write(processPOS(line));
-                        break;
-
-                    case CONSTITUENCY:
-                        bw.write(processConstituency(line));
-                        break;
-
-                    case DEPENDENCY:
-                        bw.write(processDependency(line));
-                        break;
-                }
+                String text = line;
+                sentences++;
+                pending.add(parsePool.submit(() -> analyzeSentence(engine, type, engineLabel, text)));
+            }
 
-                bw.write("\n");
+            while (!pending.isEmpty()) {
+                writeResult(bw, pending.poll(), type, counts, index);
+            }
+        } finally {
+            for (Future<String> future : pending) {
+                future.cancel(true);
             }
         }
+        return sentences;
     }
 
-    private String processPOS(String text) {
-        List<HasWord> sentence = Sentence.toWordList(text.split("\\s+"));
-        Tree parse = parser.apply(sentence);
+    public String defaultEngine(AnalysisType type) {
+        return engines.defaultEngine(type);
+    }
 
-        // Leaves with POS tags
-        StringBuilder sb = new StringBuilder();
-        for (Tree leaf : parse.getLeaves()) {
-            Tree parent = leaf.parent(parse);
-            sb.append(leaf.value()).append("_").append(parent.label()).append(" ");
-        }
-        return sb.toString().trim();
+    public ParseAdmission getAdmission() {
+        return admission;
     }
 
-    private String processConstituency(String text) {
-        List<HasWord> sentence = Sentence.toWordList(text.split("\\s+"));
-        Tree parse = parser.apply(sentence);
-        return parse.toString();
+    // Counted and indexed here rather than on the parse threads, so a file's tables need no locking
+    private void writeResult(BufferedWriter bw, Future<String> result, AnalysisType type, LabelCounts counts, SentenceIndex index) throws Exception {
+        try {
+            String line = result.get();
+            bw.write(line);
+            if (counts != null) {
+                counts.addOutput(type, line);
+            }
+            if (index != null) {
+                index.addOutput(type, line);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        bw.write("\n");
     }
 
-    private String processDependency(String text) {
+    private String analyzeSentence(AnalysisEngine engine, AnalysisType type, String engineName, String text) throws InterruptedException {
         List<HasWord> sentence = Sentence.toWordList(text.split("\\s+"));
-        Tree parse = parser.apply(sentence);
 
-        TreebankLanguagePack tlp = parser.treebankLanguagePack();
-        GrammaticalStructureFactory gsf = tlp.grammaticalStructureFactory();
-        GrammaticalStructure gs = gsf.newGrammaticalStructure(parse);
+        ProfileEvents.SentenceEvent event = new ProfileEvents.SentenceEvent();
+        event.type = type.name();
+        event.engine = engineName;
+        event.tokens = sentence.size();
+
+        long estimatedBytes = engine.estimateBytes(sentence.size());
+        if (!admission.acquire(estimatedBytes)) {
+            System.err.println("Rejected sentence of " + sentence.size() + " tokens - estimated "
+                    + (estimatedBytes >> 20) + "MB exceeds the heap budget");
+            event.rejected = true;
+            event.commit();
+            return "ERROR:Sentence_too_long_(" + sentence.size() + "_tokens)";
+        }
 
-        return gs.typedDependencies().toString();
+        try {
+            // Timed after admission so the duration is the parse alone
+            event.begin();
+            return engine.analyze(sentence);
+        } finally {
+            event.commit();
+            admission.release(estimatedBytes);
+        }
     }
-
 }
@@ -1,34 +1,108 @@
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
 
 public class Worker {
 
     private static final AWS aws = AWS.getInstance();
+    private static final String PACK_HEADER = "pack";
+    private static final String PROFILE_ARG = "profile";
+    // "types=POS,DEPENDENCY" specializes the worker to those analysis types (all of them by default)
+    private static final String TYPES_ARG = "types=";
+    // SQS long poll limit, shared between the queues of the types this worker serves
+    private static final int MAX_WAIT_SECONDS = 20;
+    // A task failing with a transient error is run at most this many times before it is dead-lettered
+    private static final int MAX_ATTEMPTS = 4;
+    // A message delivered this often was never answered - it crashed or hung every worker that took it
+    private static final int MAX_RECEIVES = 3;
+    private static final int BASE_RETRY_DELAY_SECONDS = 30;
+    // SQS limit for DelaySeconds
+    private static final int MAX_RETRY_DELAY_SECONDS = 900;
+    // Instance metadata lookups before giving up, 2s apart doubling each time
+    private static final int INSTANCE_ID_ATTEMPTS = 5;
+    private static final SourceDownloader downloader = new SourceDownloader();
+    private static SourceCache sourceCache;
     private static TextAnalyzer textAnalyzer;
+    private static List<TextAnalyzer.AnalysisType> types;
+    private static int nextType = 0;
+    // Flight Recorder session rotated per task, only with the "profile" worker argument
+    private static WorkerProfiler profiler;
+    private static Heartbeat heartbeat;
+    // Stops the loop and hands back unfinished work on shutdown or a spot interruption
+    private static Drain drain;
+    // When this worker started polling for tasks - tasks sent earlier waited for it to boot
+    private static long readyMillis;
+    // Startup milestones (epoch millis, 0 until reached)
+    private static volatile long discoveredMillis;
+    private static long modelsLoadedMillis;
+    private static long firstParseMillis;
 
     public static void main(String[] args) {
 
-        // Initialize AWS connections
-        System.out.println("Worker starting...");
-        aws.getEC2Tags();
-        System.out.println("AWS connections initialized.");
+        // Discover the queues and bucket while the models load - both take a while on a fresh instance
+        types = parseTypes(args);
+        System.out.println("Worker starting for " + types + "...");
+        CompletableFuture<Void> discovery = CompletableFuture.runAsync(() -> {
+            aws.getEC2Tags();
+            discoveredMillis = System.currentTimeMillis();
+            System.out.println("AWS connections initialized.");
+            heartbeat = new Heartbeat(aws, instanceId(), types);
+            heartbeat.start();
+        });
+
+        try {
+            sourceCache = new SourceCache(downloader);
+        } catch (IOException e) {
+            System.err.println("Source cache unavailable, downloading every source: " + e.getMessage());
+        }
 
         // Initialize the text analyzer
         System.out.println("Initializing Stanford CoreNLP pipeline...");
-        textAnalyzer = new TextAnalyzer();
+        textAnalyzer = new TextAnalyzer(parseEngineDefaults(args), types);
+        modelsLoadedMillis = System.currentTimeMillis();
         System.out.println("Text analyzer initialized.");
 
+        discovery.join();
+        heartbeat.ready();
+        drain = new Drain(aws, heartbeat);
+        drain.start();
+        System.out.println("Startup: " + startupSummary());
+
+        Metrics.register(Worker::collectMetrics);
+        Metrics.start();
+
+        if (Arrays.asList(args).contains(PROFILE_ARG)) {
+            try {
+                profiler = new WorkerProfiler(aws, heartbeat.getInstanceId());
+            } catch (Exception e) {
+                System.err.println("Profiling unavailable: " + e.getMessage());
+            }
+        }
+
         // Main processing loop
         System.out.println("Worker entering main processing loop...");
-        while (true) {
+        readyMillis = System.currentTimeMillis();
+        while (!drain.isDraining()) {
             try {
                 processMessages();
             } catch (Throwable e) {
@@ -37,34 +111,137 @@ public class Worker {
                 e.printStackTrace();
             }
         }
+        System.out.println("Worker stopped receiving messages.");
     }
 
+    // Polls the queues of the served types in turn, splitting the long poll between them so an
+    // empty queue doesn't hold up the others
     private static void processMessages() {
-        List<Message> messages = aws.receiveMessagesFromManager();
+        String type = types.get(nextType).name();
+        nextType = (nextType + 1) % types.size();
+        List<Message> messages = aws.receiveMessagesFromManager(type, Math.max(1, MAX_WAIT_SECONDS / types.size()));
 
         if (messages.isEmpty()) {
             return;
         }
 
         for (Message message : messages) {
-            processMessage(message);
+            if (!drain.begin(type, message)) {
+                continue;
+            }
+            try {
+                processMessage(type, message);
+            } finally {
+                drain.end();
+            }
         }
     }
 
-    private static void processMessage(Message message) {
+    private static void processMessage(String type, Message message) {
         String body = message.body();
-        System.out.println("Processing message: " + body);
+        int shard = shardOf(body);
+        int attempt = attemptOf(message);
+        System.out.println("Processing message (attempt " + attempt + "): " + body);
 
-        String[] parts = body.split(" ");
-        if (parts.length < 3) {
-            System.err.println("Invalid message format: " + body);
-            aws.deleteMessageFromManager(message);
+        int receives = receiveCountOf(message);
+        if (receives > MAX_RECEIVES) {
+            if (!drain.commit()) {
+                return;
+            }
+            deadLetterMessage(body, shard, receives);
+            aws.deleteMessageFromManager(type, message);
             return;
         }
 
+        if (body.startsWith(PACK_HEADER + " ")) {
+            // Several small tasks processed as a unit and answered with one result message:
+            // the "pack <appId>" header followed by one result line per task. Tasks that are
+            // retried later are left out and re-queued on their own.
+            String[] lines = body.split("\n");
+            StringBuilder results = new StringBuilder(lines[0]);
+            int answered = 0;
+            int next = 1;
+            for (; next < lines.length && !drain.isDraining(); next++) {
+                String result = processTask(lines[next], attempt);
+                if (result != null) {
+                    results.append("\n").append(result);
+                    answered++;
+                }
+            }
+            if (!drain.commit()) {
+                return;
+            }
+            if (answered > 0) {
+                aws.sendMessageToManager(shard, results.toString());
+            }
+            System.out.println("Sent results of " + answered + " of " + (lines.length - 1) + " packed tasks to manager.");
+            if (next < lines.length) {
+                // Drain checkpoint - the tasks not started yet go back as a smaller pack
+                StringBuilder rest = new StringBuilder(lines[0]);
+                for (int i = next; i < lines.length; i++) {
+                    rest.append("\n").append(lines[i]);
+                }
+                aws.requeueTaskToManagerQueue(type, rest.toString(), attempt, 0);
+                System.out.println("Re-queued " + (lines.length - next) + " packed tasks not started before the drain.");
+            }
+        } else {
+            String result = processTask(body, attempt);
+            if (!drain.commit()) {
+                return;
+            }
+            if (result != null) {
+                aws.sendMessageToManager(shard, result);
+                System.out.println("Sent result message to manager.");
+            }
+        }
+
+        // Delete the message from the queue
+        aws.deleteMessageFromManager(type, message);
+        System.out.println("Deleted message from queue.");
+    }
+
+    // A message that keeps coming back was never finished by anyone - answer every task in it
+    // with an error so the job can complete, and park the message for inspection
+    private static void deadLetterMessage(String body, int shard, int receives) {
+        System.err.println("Dead-lettering message received " + receives + " times: " + body);
+        String description = "Dead_lettered_after_" + receives + "_deliveries";
+        Metrics.increment("worker_messages_dead_lettered_total");
+        aws.sendToDeadLetterQueue(body, receives, description);
+
+        if (body.startsWith(PACK_HEADER + " ")) {
+            String[] lines = body.split("\n");
+            StringBuilder results = new StringBuilder(lines[0]);
+            for (int i = 1; i < lines.length; i++) {
+                String result = errorResult(lines[i], description);
+                if (result != null) {
+                    results.append("\n").append(result);
+                }
+            }
+            aws.sendMessageToManager(shard, results.toString());
+        } else {
+            String result = errorResult(body, description);
+            if (result != null) {
+                aws.sendMessageToManager(shard, result);
+            }
+        }
+    }
+
+    // Runs one task and returns its result line for the manager, or null for an unreadable task
+    // or one that was re-queued to be retried later
+    private static String processTask(String task, int attempt) {
+        // A task of a pack starts after the ones before it - its hops are its own
+        long startedMillis = System.currentTimeMillis();
+        String[] parts = task.split(" ");
+        if (parts.length < 3) {
+            System.err.println("Invalid message format: " + task);
+            return null;
+        }
+
         String analysisTypeStr = parts[0];
         String fileUrl = parts[1];
         String appId = parts[2];
+        Map<String, String> options = parseOptions(parts.length > 3 ? parts[3] : "");
+        String trace = startTrace(options, attempt, startedMillis);
 
         // Convert string to AnalysisType enum
         TextAnalyzer.AnalysisType analysisType;
@@ -72,80 +249,374 @@ public class Worker {
             analysisType = TextAnalyzer.AnalysisType.valueOf(analysisTypeStr.toUpperCase());
         } catch (IllegalArgumentException e) {
             System.err.println("Invalid analysis type: " + analysisTypeStr);
-            String errorMessage = analysisTypeStr + " " + fileUrl + " ERROR:Invalid_analysis_type " + appId;
-            aws.sendMessageToManager(errorMessage);
-            aws.deleteMessageFromManager(message);
-            return;
+            return withTrace(analysisTypeStr + " " + fileUrl + " ERROR:Invalid_analysis_type " + appId, trace);
         }
 
         String fileName = analysisTypeStr + "-" + fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
         String taskId = UUID.randomUUID().toString();
         String localInputPath = "input_" + taskId + ".txt";
         String localOutputPath = "output_" + taskId + ".txt";
+        String localCompressedPath = localOutputPath + ".gz";
         String s3OutputKey = "processed/" + appId + "/" + fileName;
 
+        ProfileEvents.TaskEvent taskEvent = new ProfileEvents.TaskEvent();
+        taskEvent.begin();
+        taskEvent.appId = appId;
+        taskEvent.type = analysisType.name();
+        taskEvent.engine = options.containsKey("engine") ? options.get("engine") : textAnalyzer.defaultEngine(analysisType);
+        taskEvent.url = fileUrl;
+        taskEvent.outcome = "error";
+        heartbeat.taskStarted();
+
         try {
             // Download file from URL to local temp file
             System.out.println("Downloading file from: " + fileUrl);
-            downloadFile(fileUrl, localInputPath);
-            System.out.println("Download complete: " + localInputPath);
+            long stageStart = System.nanoTime();
+            if (sourceCache != null) {
+                sourceCache.fetch(fileUrl, Paths.get(localInputPath));
+                System.out.println("Source cache: " + sourceCache.summary());
+            } else {
+                downloader.download(fileUrl, Paths.get(localInputPath));
+            }
+            Metrics.observe("worker_stage_seconds", secondsSince(stageStart), "stage", "download");
+            trace = hop(trace, "download");
+            System.out.println("Download complete: " + localInputPath + " (" + downloader.summary(URI.create(fileUrl).getHost()) + ")");
 
             // Analyze file using TextAnalyzer
             File inputFile = new File(localInputPath);
             File outputFile = new File(localOutputPath);
             
-            System.out.println("Analyzing file with type: " + analysisType);
-            textAnalyzer.analyzeFile(inputFile, outputFile, analysisType);
-            System.out.println("Analysis complete.");
+            String engine = options.get("engine");
+            System.out.println("Analyzing file with type: " + analysisType + ", engine: "
+                    + (engine != null ? engine : textAnalyzer.defaultEngine(analysisType)));
+            stageStart = System.nanoTime();
+            // Label frequencies for the job's corpus statistics, if it asked for them
+            LabelCounts counts = options.containsKey("stats") ? new LabelCounts() : null;
+            // Sentence postings for the job's result index, if it asked for one
+            SentenceIndex index = options.containsKey("index") ? new SentenceIndex() : null;
+            int sentences = textAnalyzer.analyzeFile(inputFile, outputFile, analysisType, engine, counts, index);
+            if (firstParseMillis == 0) {
+                firstParseMillis = System.currentTimeMillis();
+                System.out.println("First parse done. Startup: " + startupSummary());
+            }
+            taskEvent.sentences = sentences;
+            double parseSeconds = secondsSince(stageStart);
+            Metrics.observe("worker_stage_seconds", parseSeconds, "stage", "parse");
+            trace = hop(trace, "parse");
+            Metrics.add("worker_sentences_total", sentences, "type", analysisType.name());
+            Metrics.add("worker_parse_seconds_total", parseSeconds, "type", analysisType.name());
+            // The admission counters are the worker's running totals, not this file's
+            System.out.println("Analysis complete. Parse admission since startup: " + textAnalyzer.getAdmission().summary());
 
             // Upload result to S3
             System.out.println("Uploading result to S3...");
-            String outputPublicUrl = aws.uploadToS3(s3OutputKey, localOutputPath);
+            stageStart = System.nanoTime();
+            String outputPublicUrl;
+            if (options.containsKey("compress")) {
+                // Same key, served with Content-Encoding: gzip so HTTP clients decode it transparently
+                long rawBytes = outputFile.length();
+                gzipFile(localOutputPath, localCompressedPath);
+                System.out.println("Compressed result from " + rawBytes + " to " + new File(localCompressedPath).length() + " bytes");
+                outputPublicUrl = aws.uploadToS3(s3OutputKey, localCompressedPath, "gzip");
+            } else {
+                outputPublicUrl = aws.uploadToS3(s3OutputKey, localOutputPath);
+            }
+            if (index != null) {
+                // Private next to the result - only the manager reads it
+                aws.uploadStringToS3(s3OutputKey + ".postings", index.encode());
+            }
+            Metrics.observe("worker_stage_seconds", secondsSince(stageStart), "stage", "upload");
+            trace = hop(trace, "upload");
             System.out.println("Uploaded result to S3: " + s3OutputKey);
+            Metrics.increment("worker_tasks_total", "outcome", "success");
+            taskEvent.outcome = "success";
 
-            // Send success message to manager
-            String resultMessage = analysisTypeStr + " " + fileUrl + " " + outputPublicUrl + " " + appId;
-            aws.sendMessageToManager(resultMessage);
-            System.out.println("Sent success message to manager.");
+            // Success result for the manager
+            String result = withTrace(analysisTypeStr + " " + fileUrl + " " + outputPublicUrl + " " + appId, trace);
+            String stats = counts != null ? counts.encode() : "";
+            return stats.isEmpty() ? result : result + " " + stats;
 
         } catch (Throwable e) {
-            System.err.println("Error processing message: " + e.getClass().getName() + " - " + e.getMessage());
+            System.err.println("Error processing task: " + e.getClass().getName() + " - " + e.getMessage());
             e.printStackTrace();
             
             // Format: "<TYPE> <URL> ERROR:<description> <APP_ID>"
             String errorDescription = sanitizeErrorMessage(e.getClass().getSimpleName() + "_" + e.getMessage());
-            String errorMessage = analysisTypeStr + " " + fileUrl + " ERROR:" + errorDescription + " " + appId;
-            aws.sendMessageToManager(errorMessage);
-            System.out.println("Sent error message to manager.");
+            if (isTransient(e)) {
+                if (attempt < MAX_ATTEMPTS) {
+                    int delaySeconds = retryDelaySeconds(attempt);
+                    System.err.println("Transient failure - retrying in " + delaySeconds + "s (attempt "
+                            + (attempt + 1) + " of " + MAX_ATTEMPTS + ")");
+                    aws.requeueTaskToManagerQueue(analysisType.name(), task, attempt + 1, delaySeconds);
+                    Metrics.increment("worker_tasks_total", "outcome", "retried");
+                    taskEvent.outcome = "retried";
+                    return null;
+                }
+                aws.sendToDeadLetterQueue(task, attempt, errorDescription);
+                Metrics.increment("worker_tasks_total", "outcome", "dead_lettered");
+                taskEvent.outcome = "dead_lettered";
+                errorDescription = sanitizeErrorMessage("Gave_up_after_" + attempt + "_attempts_" + errorDescription);
+            } else {
+                Metrics.increment("worker_tasks_total", "outcome", "error");
+            }
+            return withTrace(analysisTypeStr + " " + fileUrl + " ERROR:" + errorDescription + " " + appId, trace);
         } finally {
+            heartbeat.taskFinished(taskEvent.sentences);
+            taskEvent.commit();
+            if (profiler != null) {
+                profiler.taskFinished();
+            }
+
             // Clean up local files
             try {
                 Files.deleteIfExists(Paths.get(localInputPath));
                 Files.deleteIfExists(Paths.get(localOutputPath));
+                Files.deleteIfExists(Paths.get(localCompressedPath));
             } catch (Exception e) {
                 System.err.println("Warning: Failed to clean up temp files: " + e.getMessage());
             }
         }
+    }
 
-        // Delete the message from the queue
-        aws.deleteMessageFromManager(message);
-        System.out.println("Deleted message from queue.");
+    // Identifies this worker in the manager's registry. Without its real id the manager can't match
+    // the worker to the instance it launched, so the worker exits rather than registering under another
+    // id - the manager replaces the instance once it misses its boot timeout.
+    private static String instanceId() {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return aws.getInstanceId();
+            } catch (Exception e) {
+                if (attempt == INSTANCE_ID_ATTEMPTS) {
+                    System.err.println("Instance id unavailable, exiting: " + e.getMessage());
+                    System.exit(1);
+                }
+                System.err.println("Instance id lookup failed (attempt " + attempt + "), retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(1000L << attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    // Seconds from the instance booting to the JVM starting and from the JVM starting to each milestone
+    private static Map<String, Double> startupPhases() {
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        Map<String, Double> phases = new LinkedHashMap<>();
+        try {
+            // /proc/uptime: seconds since the instance booted - covers yum, the Java install and the jar download
+            double uptimeSeconds = Double.parseDouble(new String(Files.readAllBytes(Paths.get("/proc/uptime"))).split(" ")[0]);
+            phases.put("instance_to_jvm", (jvmStart - (System.currentTimeMillis() - uptimeSeconds * 1000)) / 1000);
+        } catch (Exception e) {
+            // Not on Linux - skip the instance phase
+        }
+        if (discoveredMillis > 0) phases.put("discovery", (discoveredMillis - jvmStart) / 1000.0);
+        if (modelsLoadedMillis > 0) phases.put("models", (modelsLoadedMillis - jvmStart) / 1000.0);
+        if (readyMillis > 0) phases.put("ready", (readyMillis - jvmStart) / 1000.0);
+        if (firstParseMillis > 0) phases.put("first_parse", (firstParseMillis - jvmStart) / 1000.0);
+        return phases;
+    }
+
+    private static String startupSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Double> phase : startupPhases().entrySet()) {
+            sb.append(phase.getKey()).append('=').append(String.format("%.1fs", phase.getValue())).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    // Scrape-time view of startup, the parse admission, analysis throughput and per-host downloads
+    private static void collectMetrics(StringBuilder out) {
+        Metrics.type(out, "worker_startup_seconds", "gauge");
+        for (Map.Entry<String, Double> phase : startupPhases().entrySet()) {
+            Metrics.sample(out, "worker_startup_seconds", phase.getValue(), "phase", phase.getKey());
+        }
+
+        ParseAdmission admission = textAnalyzer.getAdmission();
+        Metrics.type(out, "worker_parse_admission_total", "counter");
+        Metrics.sample(out, "worker_parse_admission_total", admission.getAdmitted(), "result", "admitted");
+        Metrics.sample(out, "worker_parse_admission_total", admission.getSerialized(), "result", "serialized");
+        Metrics.sample(out, "worker_parse_admission_total", admission.getRejected(), "result", "rejected");
+        Metrics.sample(out, "worker_parse_admission_total", admission.getQueued(), "result", "queued");
+        Metrics.type(out, "worker_parse_admission_queue_seconds_total", "counter");
+        Metrics.sample(out, "worker_parse_admission_queue_seconds_total", admission.getTotalQueueMillis() / 1000.0);
+
+        // Sentences per second of parse time (Prometheus rate() of worker_sentences_total gives wall clock throughput)
+        Metrics.type(out, "worker_sentences_per_second", "gauge");
+        for (TextAnalyzer.AnalysisType type : TextAnalyzer.AnalysisType.values()) {
+            double seconds = Metrics.counterValue("worker_parse_seconds_total", "type", type.name());
+            if (seconds > 0) {
+                Metrics.sample(out, "worker_sentences_per_second",
+                        Metrics.counterValue("worker_sentences_total", "type", type.name()) / seconds, "type", type.name());
+            }
+        }
+
+        Map<String, SourceDownloader.HostStats> hostStats = downloader.getHostStats();
+        Metrics.type(out, "worker_download_requests_total", "counter");
+        for (Map.Entry<String, SourceDownloader.HostStats> host : hostStats.entrySet()) {
+            Metrics.sample(out, "worker_download_requests_total", host.getValue().requests.get(), "host", host.getKey());
+        }
+        Metrics.type(out, "worker_download_retries_total", "counter");
+        for (Map.Entry<String, SourceDownloader.HostStats> host : hostStats.entrySet()) {
+            Metrics.sample(out, "worker_download_retries_total", host.getValue().retries.get(), "host", host.getKey());
+        }
+        Metrics.type(out, "worker_download_failures_total", "counter");
+        for (Map.Entry<String, SourceDownloader.HostStats> host : hostStats.entrySet()) {
+            Metrics.sample(out, "worker_download_failures_total", host.getValue().failures.get(), "host", host.getKey());
+        }
+        Metrics.type(out, "worker_download_bytes_total", "counter");
+        for (Map.Entry<String, SourceDownloader.HostStats> host : hostStats.entrySet()) {
+            Metrics.sample(out, "worker_download_bytes_total", host.getValue().bytes.get(), "host", host.getKey());
+        }
+    }
+
+    // Traced tasks carry "trace=<n>,dispatch=<millis>" from the manager; the worker adds its hops
+    // and sends the token back in the field after the appId of the result line. "receive" is when
+    // the worker took the task up. Returns null if untraced.
+    private static String startTrace(Map<String, String> options, int attempt, long startedMillis) {
+        if (!options.containsKey("trace")) {
+            return null;
+        }
+        String trace = "trace=" + options.get("trace");
+        if (options.containsKey("dispatch")) {
+            trace += ",dispatch=" + options.get("dispatch");
+        }
+        trace += ",ready=" + readyMillis + ",receive=" + startedMillis;
+        return attempt > 1 ? trace + ",attempt=" + attempt : trace;
+    }
+
+    private static String hop(String trace, String name) {
+        return trace == null ? null : trace + "," + name + "=" + System.currentTimeMillis();
+    }
+
+    private static String withTrace(String resultLine, String trace) {
+        return trace == null ? resultLine : resultLine + " " + trace;
+    }
+
+    private static double secondsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    // Network trouble, throttling and server side errors may well succeed on a later attempt;
+    // anything else (missing source, bad input, parse failures) fails the same way every time.
+    // A failed download already used the downloader's retries, so it isn't tried again.
+    private static boolean isTransient(Throwable e) {
+        if (e instanceof SourceDownloader.DownloadFailedException) {
+            return false;
+        }
+        if (e instanceof AwsServiceException) {
+            AwsServiceException serviceException = (AwsServiceException) e;
+            return serviceException.isThrottlingException() || serviceException.statusCode() >= 500;
+        }
+        return e instanceof IOException || e instanceof SdkClientException;
+    }
+
+    // Exponential backoff with jitter so tasks failing together don't come back together
+    private static int retryDelaySeconds(int attempt) {
+        int ceiling = Math.min(MAX_RETRY_DELAY_SECONDS, BASE_RETRY_DELAY_SECONDS << (attempt - 1));
+        return ceiling / 2 + ThreadLocalRandom.current().nextInt(ceiling / 2 + 1);
     }
 
-    private static void downloadFile(String fileUrl, String localPath) throws Exception {
-        URL url = new URL(fileUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("GET");
-        connection.setConnectTimeout(30000); // 30 seconds
-        connection.setReadTimeout(60000); // 60 seconds
+    // Tasks sent by the manager carry no attempt attribute - that is their first attempt
+    private static int attemptOf(Message message) {
+        MessageAttributeValue value = message.messageAttributes().get(AWS.ATTEMPT_ATTRIBUTE);
+        if (value == null) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(value.stringValue());
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            throw new Exception("HTTP error code: " + responseCode);
+    private static int receiveCountOf(Message message) {
+        String count = message.attributes().get(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT);
+        return count != null ? Integer.parseInt(count) : 1;
+    }
+
+    // The Manager shard that sent the message, from the "shard=<i>" option of its (first) task
+    private static int shardOf(String body) {
+        String[] lines = body.split("\n");
+        String[] parts = lines[body.startsWith(PACK_HEADER + " ") && lines.length > 1 ? 1 : 0].split(" ");
+        String shard = parts.length > 3 ? parseOptions(parts[3]).get("shard") : null;
+        try {
+            return shard != null ? Integer.parseInt(shard) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
         }
+    }
+
+    // The task's trace index is echoed so the manager can tell which task of the job this answers
+    private static String errorResult(String task, String description) {
+        String[] parts = task.split(" ");
+        if (parts.length < 3) {
+            return null;
+        }
+        String result = parts[0] + " " + parts[1] + " ERROR:" + description + " " + parts[2];
+        String traceIndex = parts.length > 3 ? parseOptions(parts[3]).get("trace") : null;
+        return traceIndex != null ? result + " trace=" + traceIndex : result;
+    }
+
+    // Deployment defaults are passed as worker arguments, e.g. "POS=tagger DEPENDENCY=nndep"
+    private static Map<TextAnalyzer.AnalysisType, String> parseEngineDefaults(String[] args) {
+        Map<TextAnalyzer.AnalysisType, String> defaults = new EnumMap<>(TextAnalyzer.AnalysisType.class);
+        for (String arg : args) {
+            if (arg.equals(PROFILE_ARG) || arg.startsWith(TYPES_ARG)) {
+                continue;
+            }
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2) {
+                System.err.println("Ignoring unknown argument: " + arg);
+                continue;
+            }
+            try {
+                defaults.put(TextAnalyzer.AnalysisType.valueOf(keyValue[0].toUpperCase()), keyValue[1]);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring unknown argument: " + arg);
+            }
+        }
+        return defaults;
+    }
+
+    private static List<TextAnalyzer.AnalysisType> parseTypes(String[] args) {
+        EnumSet<TextAnalyzer.AnalysisType> types = EnumSet.noneOf(TextAnalyzer.AnalysisType.class);
+        for (String arg : args) {
+            if (!arg.startsWith(TYPES_ARG)) {
+                continue;
+            }
+            for (String type : arg.substring(TYPES_ARG.length()).split(",")) {
+                try {
+                    types.add(TextAnalyzer.AnalysisType.valueOf(type.toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Ignoring unknown analysis type: " + type);
+                }
+            }
+        }
+        if (types.isEmpty()) {
+            types = EnumSet.allOf(TextAnalyzer.AnalysisType.class);
+        }
+        return new ArrayList<>(types);
+    }
+
+    // Per task options are a comma separated list of key=value pairs (or bare flags)
+    private static Map<String, String> parseOptions(String optionsToken) {
+        Map<String, String> options = new HashMap<>();
+        for (String option : optionsToken.split(",")) {
+            if (option.isEmpty()) {
+                continue;
+            }
+            String[] keyValue = option.split("=", 2);
+            options.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "true");
+        }
+        return options;
+    }
 
-        try (InputStream in = connection.getInputStream()) {
-            Files.copy(in, Paths.get(localPath), StandardCopyOption.REPLACE_EXISTING);
+    private static void gzipFile(String sourcePath, String targetPath) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(targetPath))) {
+            Files.copy(Paths.get(sourcePath), out);
         }
     }
 
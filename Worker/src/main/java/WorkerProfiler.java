@@ -0,0 +1,95 @@
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Always-on Flight Recorder session of the worker, uploaded every ROTATE_MILLIS and once more when
+// the worker shuts down. The next recording starts before the finished one stops, so nothing is
+// lost in between. Recordings go to profiles/<instanceId>/<start millis>.jfr - a few objects per
+// worker rather than one per task - and are merged across workers with ProfileMerger. The Task
+// events say which job each task belonged to.
+class WorkerProfiler {
+
+    // JFR's low overhead (~1%) settings, the same as a continuous production recording
+    private static final String SETTINGS = "default";
+    private static final long ROTATE_MILLIS = 15 * 60 * 1000;
+
+    private final AWS aws;
+    private final String instanceId;
+    private final Configuration configuration;
+    private Recording current;
+    private long currentStart;
+    // Idle intervals aren't uploaded
+    private boolean tasksSinceRotation = false;
+
+    WorkerProfiler(AWS aws, String instanceId) throws Exception {
+        this.aws = aws;
+        this.instanceId = instanceId;
+        this.configuration = Configuration.getConfiguration(SETTINGS);
+        this.current = startRecording();
+
+        Thread rotation = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(ROTATE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                rotate(true);
+            }
+        }, "profile-rotation");
+        rotation.setDaemon(true);
+        rotation.start();
+        // The network is still up while the worker drains (see Drain)
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> rotate(false), "profile-upload"));
+        System.out.println("Flight Recorder profiling enabled (" + SETTINGS + " settings)");
+    }
+
+    synchronized void taskFinished() {
+        tasksSinceRotation = true;
+    }
+
+    // Closes the current recording and uploads it; restart is false for the last one
+    private synchronized void rotate(boolean restart) {
+        if (current == null) {
+            return;
+        }
+        Recording finished = current;
+        long finishedStart = currentStart;
+        boolean upload = tasksSinceRotation;
+        current = restart ? startRecording() : null;
+        tasksSinceRotation = false;
+        finished.stop();
+
+        Path path = Paths.get("profile_" + finishedStart + ".jfr");
+        try {
+            if (upload) {
+                finished.dump(path);
+                String key = "profiles/" + instanceId + "/" + finishedStart + ".jfr";
+                aws.uploadToS3(key, path.toString());
+                System.out.println("Uploaded profile to S3: " + key);
+            }
+        } catch (Exception e) {
+            // Profiles are best effort - never fail the worker because of them
+            System.err.println("Failed to upload profile: " + e.getMessage());
+        } finally {
+            finished.close();
+            try {
+                Files.deleteIfExists(path);
+            } catch (Exception e) {
+                System.err.println("Warning: Failed to clean up profile: " + e.getMessage());
+            }
+        }
+    }
+
+    private Recording startRecording() {
+        Recording recording = new Recording(configuration);
+        recording.setName("worker");
+        recording.setToDisk(true);
+        recording.start();
+        currentStart = System.currentTimeMillis();
+        return recording;
+    }
+}
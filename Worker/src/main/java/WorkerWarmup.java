@@ -0,0 +1,55 @@
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+
+// Builds the fast startup files on the one worker of a deployment the Manager picks (see WorkerPool
+// and the worker user data in the Manager's AWS.createWorkers):
+// - the PCFG model serialized again without compression, which loads without inflating the packaged .gz
+// - with -XX:ArchiveClassesAtExit=worker.jsa, an AppCDS archive of every class a worker needs to
+//   reach its first parse, which later workers map instead of loading and verifying the classes
+// The archive only works on the same JDK build with the same jar, which is why it is built on a
+// worker rather than at package time.
+// Usage: java -XX:ArchiveClassesAtExit=worker.jsa -cp Worker-1.0-SNAPSHOT.jar WorkerWarmup [snapshot]
+public class WorkerWarmup {
+
+    private static final String[] SAMPLE_SENTENCES = {
+            "The quick brown fox jumps over the lazy dog .",
+            "Workers load their models once and parse many files ."
+    };
+
+    public static void main(String[] args) throws Exception {
+        String snapshot = args.length > 0 ? args[0] : PcfgEngine.SNAPSHOT;
+
+        long start = System.currentTimeMillis();
+        LexicalizedParser parser = LexicalizedParser.loadModel(PcfgEngine.MODEL);
+        parser.saveParserToSerialized(snapshot);
+        System.out.println("Wrote PCFG model snapshot " + snapshot + " in " + (System.currentTimeMillis() - start) + "ms");
+
+        // Walk the startup and parse paths so their classes end up in the archive. The analyzer
+        // loads the snapshot just written, like a worker would.
+        AWS.getInstance();
+        TextAnalyzer textAnalyzer = new TextAnalyzer(new EnumMap<>(TextAnalyzer.AnalysisType.class),
+                EnumSet.allOf(TextAnalyzer.AnalysisType.class));
+        File input = File.createTempFile("warmup_input", ".txt");
+        File output = File.createTempFile("warmup_output", ".txt");
+        try {
+            Files.write(input.toPath(), Arrays.asList(SAMPLE_SENTENCES), StandardCharsets.UTF_8);
+            for (TextAnalyzer.AnalysisType type : TextAnalyzer.AnalysisType.values()) {
+                textAnalyzer.analyzeFile(input, output, type, null);
+            }
+        } finally {
+            input.delete();
+            output.delete();
+        }
+        Metrics.render();
+
+        System.out.println("Warmup finished in " + (System.currentTimeMillis() - start) + "ms");
+        // The parse pool threads are daemons, but exit explicitly so the archive is written now
+        System.exit(0);
+    }
+}
@@ -31,7 +31,8 @@ echo.
 echo [3/3] Building Worker...
 echo ----------------------------------------
 cd Worker
-call mvn clean package
+REM fast-engines packages the models of the tagger, sr and nndep engines the Manager and clients accept
+call mvn clean package -P fast-engines
 if %ERRORLEVEL% neq 0 (
     echo ERROR: Worker build failed!
     cd ..